@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+
+/* On-disk cache of checked programs, so lab2 skips parsing and type
+ * checking of sources it has seen before.
+ *
+ * An entry is named by the SHA-256 of VERSION and the source text and
+ * holds the syntax tree together with the types the checker inferred, in
+ * the compact form of AstCodec; reading it back needs neither the lexer
+ * and parser tables nor the type checker. Hits refresh the modification
+ * time of their entry, and when the directory grows past its size limit
+ * the least recently used entries are deleted. Several lab2 processes
+ * can share a directory: entries are written under a temporary name and
+ * renamed into place, and an entry that cannot be read counts as a miss.
+ * Temporary files that an interrupted writer left behind are deleted
+ * once they are older than any write could take. */
+public class AstCache {
+
+    /* Bump when the syntax tree or the type checker changes meaning.
+     * Entries hold programs as checked, before lab2.optimize. */
+    public static final String VERSION = "lab2-ast-3";
+
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final String SUFFIX = ".ast";
+    private static final String TMP_PREFIX = "tmp";
+
+    /* Age past which a temporary file is left over, not being written. */
+    private static final long STALE_MILLIS = 60L * 60 * 1000;
+
+    private final Path dir;
+    private final long maxBytes;
+
+    public AstCache(Path dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    public AstCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /* The checked program of this source, or null if it is not cached. */
+    public CheckedProgram get(String source) {
+        Path entry = dir.resolve(key(source) + SUFFIX);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(entry))) {
+            CheckedProgram p = AstCodec.read(in);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return p;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            /* Truncated, or written by an incompatible version. */
+            try {
+                Files.deleteIfExists(entry);
+            } catch (IOException f) {
+            }
+            return null;
+        }
+    }
+
+    /* Stores the checked program of this source. Failures only cost the
+     * next run its hit, so they are ignored. */
+    public void put(String source, CheckedProgram p) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, TMP_PREFIX, null);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                AstCodec.write(p, out);
+            }
+            Files.move(tmp, dir.resolve(key(source) + SUFFIX),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            evict();
+        } catch (IOException e) {
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* Deletes stale temporary files, then least recently used entries
+     * until the cache fits maxBytes. */
+    private void evict() throws IOException {
+        long stale = System.currentTimeMillis() - STALE_MILLIS;
+        try (DirectoryStream<Path> tmps = Files.newDirectoryStream(dir, TMP_PREFIX + "*")) {
+            for (Path t : tmps) {
+                try {
+                    if (Files.getLastModifiedTime(t).toMillis() < stale) Files.deleteIfExists(t);
+                } catch (NoSuchFileException x) {
+                    /* Renamed into place or deleted meanwhile. */
+                }
+            }
+        }
+
+        final Map<Path, FileTime> used = new HashMap<Path, FileTime>();
+        final Map<Path, Long> sizes = new HashMap<Path, Long>();
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path e : entries) {
+                try {
+                    used.put(e, Files.getLastModifiedTime(e));
+                    sizes.put(e, Files.size(e));
+                    total += sizes.get(e);
+                } catch (NoSuchFileException x) {
+                    /* Evicted by another process meanwhile. */
+                }
+            }
+        }
+        if (total <= maxBytes) return;
+
+        List<Path> oldest = new ArrayList<Path>(used.keySet());
+        Collections.sort(oldest, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return used.get(a).compareTo(used.get(b));
+            }
+        });
+        for (Path e : oldest) {
+            if (total <= maxBytes) break;
+            Files.deleteIfExists(e);
+            total -= sizes.get(e);
+        }
+    }
+
+    private static String key(String source) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            byte[] hash = sha.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder s = new StringBuilder();
+            for (byte b : hash)
+                s.append(String.format("%02x", b));
+            return s.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // every Java platform has SHA-256
+        }
+    }
+}
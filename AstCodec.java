@@ -0,0 +1,447 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.util.*;
+
+/* Compact binary form of a checked program, for AstCache.
+ *
+ * The tree is written in preorder, one tag byte per node. Every
+ * expression is followed by the tag of the type the checker inferred
+ * for it, so decoding rebuilds the TypeChecker's types along with the
+ * tree. Identifiers are numbered in order of first occurrence and only
+ * the first occurrence spells them out; counts and numbers are varints. */
+public class AstCodec {
+
+    /* Node tags. */
+    private static final int
+        T_BOOL = 0, T_INT = 1, T_DOUBLE = 2, T_VOID = 3, T_NONE = 4;
+
+    private static final int
+        S_EXP = 0, S_DECLS = 1, S_INIT = 2, S_RETURN = 3, S_WHILE = 4, S_BLOCK = 5, S_IFELSE = 6;
+
+    private static final int
+        E_TRUE = 0, E_FALSE = 1, E_INT = 2, E_DOUBLE = 3, E_ID = 4, E_APP = 5,
+        E_POSTINCR = 6, E_POSTDECR = 7, E_PREINCR = 8, E_PREDECR = 9,
+        E_TIMES = 10, E_DIV = 11, E_PLUS = 12, E_MINUS = 13,
+        E_LT = 14, E_GT = 15, E_LTEQ = 16, E_GTEQ = 17, E_EQ = 18, E_NEQ = 19,
+        E_AND = 20, E_OR = 21, E_ASS = 22;
+
+    public static void write(CheckedProgram p, OutputStream out) throws IOException {
+        new Encoder(out, p.checker).program(p.tree);
+    }
+
+    public static CheckedProgram read(InputStream in) throws IOException {
+        return new Decoder(in).program();
+    }
+
+    ////////////////////////////// Encoder //////////////////////////////
+
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final TypeChecker checker;
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+        private final StmEncoder stmEncoder = new StmEncoder();
+        private final ExpEncoder expEncoder = new ExpEncoder();
+
+        Encoder(OutputStream out, TypeChecker checker) {
+            this.out = new DataOutputStream(out);
+            this.checker = checker;
+        }
+
+        void program(Program p) throws IOException {
+            ListDef defs = ((PDefs) p).listdef_;
+            uint(defs.size());
+            for (Def d : defs) {
+                DFun f = (DFun) d;
+                type(f.type_);
+                id(f.id_);
+                uint(f.listarg_.size());
+                for (Arg a : f.listarg_) {
+                    type(((ADecl) a).type_);
+                    id(((ADecl) a).id_);
+                }
+                stms(f.liststm_);
+            }
+            out.flush();
+        }
+
+        void stms(ListStm ss) throws IOException {
+            uint(ss.size());
+            for (Stm s : ss)
+                stm(s);
+        }
+
+        void stm(Stm s) throws IOException {
+            try {
+                s.accept(stmEncoder, null);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        void exp(Exp e) throws IOException {
+            try {
+                e.accept(expEncoder, null);
+            } catch (UncheckedIOException x) {
+                throw x.getCause();
+            }
+        }
+
+        void type(Type t) throws IOException {
+            out.writeByte(t instanceof Type_bool   ? T_BOOL
+                        : t instanceof Type_int    ? T_INT
+                        : t instanceof Type_double ? T_DOUBLE
+                        : t instanceof Type_void   ? T_VOID
+                        :                            T_NONE);
+        }
+
+        void id(String id) throws IOException {
+            Integer n = ids.get(id);
+            if (n != null) {
+                uint(n);
+            } else {
+                uint(ids.size());
+                out.writeUTF(id);
+                ids.put(id, ids.size());
+            }
+        }
+
+        void uint(int n) throws IOException {
+            while ((n & ~0x7f) != 0) {
+                out.writeByte((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            out.writeByte(n);
+        }
+
+        /* Visitors cannot throw checked exceptions, so IOExceptions pass
+         * through them wrapped. */
+        private class StmEncoder implements Stm.Visitor<Void, Void> {
+            public Void visit(CPP.Absyn.SExp p, Void arg)    { return node(S_EXP, p.exp_); }
+            public Void visit(CPP.Absyn.SReturn p, Void arg) { return node(S_RETURN, p.exp_); }
+
+            public Void visit(CPP.Absyn.SDecls p, Void arg) {
+                try {
+                    out.writeByte(S_DECLS);
+                    type(p.type_);
+                    uint(p.listid_.size());
+                    for (String id : p.listid_)
+                        id(id);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.SInit p, Void arg) {
+                try {
+                    out.writeByte(S_INIT);
+                    type(p.type_);
+                    id(p.id_);
+                    exp(p.exp_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.SWhile p, Void arg) {
+                try {
+                    out.writeByte(S_WHILE);
+                    exp(p.exp_);
+                    stm(p.stm_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.SBlock p, Void arg) {
+                try {
+                    out.writeByte(S_BLOCK);
+                    stms(p.liststm_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.SIfElse p, Void arg) {
+                try {
+                    out.writeByte(S_IFELSE);
+                    exp(p.exp_);
+                    stm(p.stm_1);
+                    stm(p.stm_2);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            private Void node(int tag, Exp e) {
+                try {
+                    out.writeByte(tag);
+                    exp(e);
+                } catch (IOException x) {
+                    throw new UncheckedIOException(x);
+                }
+                return null;
+            }
+        }
+
+        private class ExpEncoder implements Exp.Visitor<Void, Void> {
+            public Void visit(CPP.Absyn.ETrue p, Void arg)  { return head(E_TRUE, p); }
+            public Void visit(CPP.Absyn.EFalse p, Void arg) { return head(E_FALSE, p); }
+
+            public Void visit(CPP.Absyn.EInt p, Void arg) {
+                head(E_INT, p);
+                try {
+                    out.writeInt(p.integer_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.EDouble p, Void arg) {
+                head(E_DOUBLE, p);
+                try {
+                    out.writeDouble(p.double_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.EId p, Void arg)       { return named(E_ID, p, p.id_); }
+            public Void visit(CPP.Absyn.EPostIncr p, Void arg) { return named(E_POSTINCR, p, p.id_); }
+            public Void visit(CPP.Absyn.EPostDecr p, Void arg) { return named(E_POSTDECR, p, p.id_); }
+            public Void visit(CPP.Absyn.EPreIncr p, Void arg)  { return named(E_PREINCR, p, p.id_); }
+            public Void visit(CPP.Absyn.EPreDecr p, Void arg)  { return named(E_PREDECR, p, p.id_); }
+
+            public Void visit(CPP.Absyn.EApp p, Void arg) {
+                named(E_APP, p, p.id_);
+                try {
+                    uint(p.listexp_.size());
+                    for (Exp e : p.listexp_)
+                        exp(e);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            public Void visit(CPP.Absyn.ETimes p, Void arg) { return binary(E_TIMES, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EDiv p, Void arg)   { return binary(E_DIV, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EPlus p, Void arg)  { return binary(E_PLUS, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EMinus p, Void arg) { return binary(E_MINUS, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.ELt p, Void arg)    { return binary(E_LT, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EGt p, Void arg)    { return binary(E_GT, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.ELtEq p, Void arg)  { return binary(E_LTEQ, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EGtEq p, Void arg)  { return binary(E_GTEQ, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EEq p, Void arg)    { return binary(E_EQ, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.ENEq p, Void arg)   { return binary(E_NEQ, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EAnd p, Void arg)   { return binary(E_AND, p, p.exp_1, p.exp_2); }
+            public Void visit(CPP.Absyn.EOr p, Void arg)    { return binary(E_OR, p, p.exp_1, p.exp_2); }
+
+            public Void visit(CPP.Absyn.EAss p, Void arg) {
+                named(E_ASS, p, p.id_);
+                try {
+                    exp(p.exp_);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            /* Tag and inferred type. */
+            private Void head(int tag, Exp p) {
+                try {
+                    out.writeByte(tag);
+                    type(checker.typeOf(p));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            private Void named(int tag, Exp p, String id) {
+                head(tag, p);
+                try {
+                    id(id);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            private Void binary(int tag, Exp p, Exp e1, Exp e2) {
+                head(tag, p);
+                try {
+                    exp(e1);
+                    exp(e2);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+        }
+    }
+
+    ////////////////////////////// Decoder //////////////////////////////
+
+    private static class Decoder {
+        private final DataInputStream in;
+        private final Map<Exp, Type> types = new IdentityHashMap<Exp, Type>();
+        private final List<String> ids = new ArrayList<String>();
+
+        /* One object per type, like the checker's own. */
+        private final Type[] typeTable = {
+            new Type_bool(), new Type_int(), new Type_double(), new Type_void(), null
+        };
+
+        Decoder(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        CheckedProgram program() throws IOException {
+            ListDef defs = new ListDef();
+            for (int n = uint(); n > 0; n--) {
+                Type t = type();
+                String id = id();
+                ListArg args = new ListArg();
+                for (int k = uint(); k > 0; k--) {
+                    Type at = type();
+                    args.add(new ADecl(at, id()));
+                }
+                defs.add(new DFun(t, id, args, stms()));
+            }
+            return new CheckedProgram(new PDefs(defs), new TypeChecker(types));
+        }
+
+        ListStm stms() throws IOException {
+            ListStm ss = new ListStm();
+            for (int n = uint(); n > 0; n--)
+                ss.add(stm());
+            return ss;
+        }
+
+        Stm stm() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case S_EXP:
+                    return new SExp(exp());
+
+                case S_DECLS: {
+                    Type t = type();
+                    ListId ids = new ListId();
+                    for (int n = uint(); n > 0; n--)
+                        ids.add(id());
+                    return new SDecls(t, ids);
+                }
+
+                case S_INIT: {
+                    Type t = type();
+                    String id = id();
+                    return new SInit(t, id, exp());
+                }
+
+                case S_RETURN:
+                    return new SReturn(exp());
+
+                case S_WHILE: {
+                    Exp e = exp();
+                    return new SWhile(e, stm());
+                }
+
+                case S_BLOCK:
+                    return new SBlock(stms());
+
+                case S_IFELSE: {
+                    Exp e = exp();
+                    Stm s1 = stm();
+                    return new SIfElse(e, s1, stm());
+                }
+            }
+            throw new IOException("Bad statement tag " + tag);
+        }
+
+        Exp exp() throws IOException {
+            int tag = in.readUnsignedByte();
+            Type t = type();
+            Exp e;
+            switch (tag) {
+                case E_TRUE:     e = new ETrue(); break;
+                case E_FALSE:    e = new EFalse(); break;
+                case E_INT:      e = new EInt(in.readInt()); break;
+                case E_DOUBLE:   e = new EDouble(in.readDouble()); break;
+                case E_ID:       e = new EId(id()); break;
+                case E_POSTINCR: e = new EPostIncr(id()); break;
+                case E_POSTDECR: e = new EPostDecr(id()); break;
+                case E_PREINCR:  e = new EPreIncr(id()); break;
+                case E_PREDECR:  e = new EPreDecr(id()); break;
+
+                case E_APP: {
+                    String id = id();
+                    ListExp args = new ListExp();
+                    for (int n = uint(); n > 0; n--)
+                        args.add(exp());
+                    e = new EApp(id, args);
+                    break;
+                }
+
+                case E_ASS: {
+                    String id = id();
+                    e = new EAss(id, exp());
+                    break;
+                }
+
+                default: {
+                    Exp e1 = exp();
+                    Exp e2 = exp();
+                    switch (tag) {
+                        case E_TIMES: e = new ETimes(e1, e2); break;
+                        case E_DIV:   e = new EDiv(e1, e2); break;
+                        case E_PLUS:  e = new EPlus(e1, e2); break;
+                        case E_MINUS: e = new EMinus(e1, e2); break;
+                        case E_LT:    e = new ELt(e1, e2); break;
+                        case E_GT:    e = new EGt(e1, e2); break;
+                        case E_LTEQ:  e = new ELtEq(e1, e2); break;
+                        case E_GTEQ:  e = new EGtEq(e1, e2); break;
+                        case E_EQ:    e = new EEq(e1, e2); break;
+                        case E_NEQ:   e = new ENEq(e1, e2); break;
+                        case E_AND:   e = new EAnd(e1, e2); break;
+                        case E_OR:    e = new EOr(e1, e2); break;
+                        default:      throw new IOException("Bad expression tag " + tag);
+                    }
+                }
+            }
+            if (t != null) types.put(e, t);
+            return e;
+        }
+
+        Type type() throws IOException {
+            int tag = in.readUnsignedByte();
+            if (tag >= typeTable.length) throw new IOException("Bad type tag " + tag);
+            return typeTable[tag];
+        }
+
+        String id() throws IOException {
+            int n = uint();
+            if (n < ids.size()) return ids.get(n);
+            if (n > ids.size()) throw new IOException("Bad identifier " + n);
+            String id = in.readUTF();
+            ids.add(id);
+            return id;
+        }
+
+        int uint() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                n |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return n;
+            }
+            throw new IOException("Bad varint");
+        }
+    }
+}
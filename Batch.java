@@ -0,0 +1,257 @@
+import CPP.*;
+import CPP.Absyn.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Runs many CPP programs in one JVM, in parallel on a work stealing pool.
+ *
+ * The programs are the .cc files of a directory, or the files listed one
+ * per line in a manifest (relative to the manifest's directory). Each
+ * program reads its input from <name>.in next to it, if there is one,
+ * and its output is captured separately, optionally into <dir>/<name>.out.
+ * One status line with the run time is reported per program, in order,
+ * followed on stderr by whatever the program wrote there (such as the
+ * memo report of -m), which is also captured per program. */
+public class Batch {
+
+    /* Outcome of one program. */
+    static class Result {
+        final Path source;
+        String status = "OK";
+        String message = "";
+        long nanos;
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        Result(Path source) {
+            this.source = source;
+        }
+    }
+
+    public static void usage() {
+        System.err.println("Usage: batch [-c | -b | -x | -t] [-m] [-j <threads>] [-o <OutputDir>] <Directory | Manifest>");
+        System.err.println("  -c         run on the closure-compiled engine");
+        System.err.println("  -b         run on the register bytecode VM");
+        System.err.println("  -x         compile to JVM bytecode and run it in this JVM (lab2 -j)");
+        System.err.println("  -t         interpret, compiling hot functions as it goes (lab2 -t)");
+        System.err.println("  -m         memoize calls of pure functions (visitor and -c engines)");
+        System.err.println("  -j <n>     number of worker threads (default: number of cores)");
+        System.err.println("  -o <dir>   write the output of each program to <dir>/<name>.out");
+        System.exit(1);
+    }
+
+    public static void main(String args[]) {
+        String target = null;
+        Engine engine = Engine.Visitor;
+        boolean memoize = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path outDir = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-c":
+                    engine = Engine.Closure;
+                    break;
+
+                case "-b":
+                    engine = Engine.Bytecode;
+                    break;
+
+                case "-x":
+                    engine = Engine.Jvm;
+                    break;
+
+                case "-t":
+                    engine = Engine.Tiered;
+                    break;
+
+                case "-m":
+                    memoize = true;
+                    break;
+
+                case "-j":
+                    if (++i == args.length) usage();
+                    try {
+                        threads = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    break;
+
+                case "-o":
+                    if (++i == args.length) usage();
+                    outDir = Paths.get(args[i]);
+                    break;
+
+                default:
+                    if (target != null) usage();
+                    target = arg;
+                    break;
+            }
+        }
+        if (target == null || threads < 1) usage();
+
+        try {
+            List<Path> sources = sources(Paths.get(target));
+            if (outDir != null) Files.createDirectories(outDir);
+
+            long start = System.nanoTime();
+            ExecutorService pool = Executors.newWorkStealingPool(threads);
+            List<Future<Result>> results = new ArrayList<Future<Result>>();
+            for (final Path source : sources) {
+                final Engine e = engine;
+                final boolean m = memoize;
+                final Path o = outDir;
+                results.add(pool.submit(new Callable<Result>() {
+                    public Result call() {
+                        return run(source, e, m, o);
+                    }
+                }));
+            }
+
+            /* Report in order, as soon as each result is in. */
+            Map<String, Integer> counts = new TreeMap<String, Integer>();
+            for (Future<Result> f : results) {
+                Result r = f.get();
+                System.out.printf("%-40s %-14s %8.1f ms  %s%n", r.source, r.status,
+                                  r.nanos / 1e6, r.message);
+                if (r.stderr.size() > 0) {
+                    System.out.flush();
+                    r.stderr.writeTo(System.err);
+                    System.err.flush();
+                }
+                Integer n = counts.get(r.status);
+                counts.put(r.status, n == null ? 1 : n + 1);
+            }
+            pool.shutdown();
+
+            System.out.printf("%d programs in %.1f ms: %s%n", sources.size(),
+                              (System.nanoTime() - start) / 1e6, counts);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            System.exit(1);
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println(e.toString());
+            System.exit(-1);
+        }
+    }
+
+    /* The .cc files of a directory, or the files listed in a manifest. */
+    static List<Path> sources(Path target) throws IOException {
+        List<Path> sources = new ArrayList<Path>();
+        if (Files.isDirectory(target)) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(target, "*.cc")) {
+                for (Path p : dir)
+                    sources.add(p);
+            }
+            Collections.sort(sources);
+        } else {
+            Path base = target.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(target)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    sources.add(base.resolve(line));
+            }
+        }
+        return sources;
+    }
+
+    /* Any failure of the lexer or parser. */
+    static class SyntaxError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxError(String message) {
+            super(message);
+        }
+    }
+
+    static Program parse(Path source) throws IOException, SyntaxError {
+        try (Reader reader = Files.newBufferedReader(source)) {
+            Yylex l = new Yylex(reader);
+            try {
+                return new parser(l, l.getSymbolFactory()).pProgram();
+            } catch (Throwable e) {
+                throw new SyntaxError("At line " + l.line_num() + ", near \"" + l.buff()
+                                      + "\": " + e.getMessage());
+            }
+        }
+    }
+
+    /* Parses, type checks and runs one program with its own input and
+     * output. Never throws: every failure becomes the result's status. */
+    static Result run(Path source, Engine engine, boolean memoize, Path outDir) {
+        Result r = new Result(source);
+        long start = System.nanoTime();
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        PrintStream stderr = new PrintStream(r.stderr, true);
+        try {
+            Program tree = parse(source);
+            TypeChecker checker = new TypeChecker();
+            checker.typecheck(tree);
+            CheckedProgram program = lab2.optimize(new CheckedProgram(tree, checker),
+                                                   Inliner.DEFAULT_LIMIT);
+            tree = program.tree;
+            checker = program.checker;
+
+            String name = source.getFileName().toString().replaceFirst("\\.cc$", "");
+            Path inFile = source.resolveSibling(name + ".in");
+            try (InputStream stdin = Files.exists(inFile)
+                     ? Files.newInputStream(inFile) : InputStream.nullInputStream()) {
+                Input in = new Input(stdin);
+                Output out = new Output(stdout);
+                switch (engine) {
+                    case Visitor:
+                        new Interpreter(in, out, memoize, stderr).interpret(tree);
+                        break;
+
+                    case Closure:
+                        new ClosureInterpreter(checker, in, out, memoize, stderr).interpret(tree);
+                        break;
+
+                    case Bytecode:
+                        new VMCompiler(checker, VM.DEFAULT_STACK_MB, in, out).compile(tree).run();
+                        break;
+
+                    case Jvm:
+                        new JvmCompiler(checker, in, out).run(lab2.className(source), tree);
+                        break;
+
+                    case Tiered:
+                        new TieredInterpreter(checker, in, out, memoize, stderr).interpret(tree);
+                        break;
+                }
+            }
+        } catch (SyntaxError e) {
+            r.status = "SYNTAX ERROR";
+            r.message = e.getMessage();
+        } catch (TypeException e) {
+            r.status = "TYPE ERROR";
+            r.message = e.getMessage();
+        } catch (RuntimeException | VirtualMachineError e) {
+            r.status = "RUNTIME ERROR";
+            r.message = e.toString();
+        } catch (IOException e) {
+            r.status = "IO ERROR";
+            r.message = e.toString();
+        } catch (Throwable e) {
+            /* E.g. a VerifyError of the class compiled for -x: a fault of
+             * lab2, which must not end the other programs of the batch. */
+            r.status = "INTERNAL ERROR";
+            r.message = e.toString();
+        } finally {
+            r.nanos = System.nanoTime() - start;
+        }
+
+        if (outDir != null) {
+            String name = source.getFileName().toString().replaceFirst("\\.cc$", ".out");
+            try {
+                Files.write(outDir.resolve(name), stdout.toByteArray());
+            } catch (IOException e) {
+                r.status = "IO ERROR";
+                r.message = e.toString();
+            }
+        }
+        return r;
+    }
+}
@@ -0,0 +1,20 @@
+/* Functions provided by the runtime instead of the program. */
+public enum Builtin {
+    PrintInt("printInt"),
+    PrintDouble("printDouble"),
+    ReadInt("readInt"),
+    ReadDouble("readDouble");
+
+    public final String id;
+
+    Builtin(String id) {
+        this.id = id;
+    }
+
+    /* The builtin called id, or null for a user defined function. */
+    public static Builtin of(String id) {
+        for (Builtin b : values())
+            if (b.id.equals(id)) return b;
+        return null;
+    }
+}
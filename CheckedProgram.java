@@ -0,0 +1,14 @@
+import CPP.Absyn.*;
+
+/* A parsed program together with the TypeChecker that accepted it, which
+ * the engines consult for the types of expressions. Engines keep their
+ * own state, so one CheckedProgram can be run many times, concurrently. */
+public class CheckedProgram {
+    public final Program tree;
+    public final TypeChecker checker;
+
+    public CheckedProgram(Program tree, TypeChecker checker) {
+        this.tree = tree;
+        this.checker = checker;
+    }
+}
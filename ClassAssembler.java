@@ -0,0 +1,783 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.util.*;
+
+/* Assembles the functions compiled by Compiler into a class file, without
+ * going through Jasmin.
+ *
+ * Each method is checked by a data flow pass over its instructions, which
+ * gives the types of the locals and the operand stack before every
+ * instruction. From those come max stack, max locals and a full stack map
+ * frame at every jump target. Unreachable instructions are left out. Locals
+ * that are not parameters start out as zero, as in the other engines.
+ *
+ * The builtins live in the class itself: $printInt and the others are
+ * private static methods on the Input and Output held in the public
+ * static fields in and out. main(String[]) sets these fields to stdin
+ * and stdout, so a written class file runs with Input and Output on the
+ * class path. In-process runs set the fields themselves (JvmCompiler). */
+public class ClassAssembler {
+
+    /* Class file version 52 (Java 8) has stack map frames. */
+    private static final int MAJOR_VERSION = 52;
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008,
+                             ACC_SUPER = 0x0020;
+
+    /* Opcodes. */
+    private static final int
+        ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12,
+        LDC_W = 0x13, LDC2_W = 0x14,
+        ILOAD = 0x15, DLOAD = 0x18, ILOAD_0 = 0x1a, DLOAD_0 = 0x26, ALOAD_1 = 0x2b,
+        ISTORE = 0x36, DSTORE = 0x39, ISTORE_0 = 0x3b, DSTORE_0 = 0x47, ASTORE_1 = 0x4c,
+        POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c,
+        IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67, IMUL = 0x68, DMUL = 0x6b,
+        IDIV = 0x6c, DDIV = 0x6f, IINC = 0x84, DCMPL = 0x97, DCMPG = 0x98,
+        IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+        IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+        IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7,
+        IRETURN = 0xac, DRETURN = 0xaf, RETURN = 0xb1,
+        GETSTATIC = 0xb2, PUTSTATIC = 0xb3, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+        INVOKESTATIC = 0xb8, NEW = 0xbb, ATHROW = 0xbf, WIDE = 0xc4;
+
+    /* Verification types of the stack map frames. Int also stands for
+     * bool; a double local takes its slot and the next, which is Top. */
+    private static final int TOP = 0, INT = 1, DOUBLE = 3;
+
+    /* The builtins and their descriptors. */
+    private static final Map<String, String> BUILTINS = new LinkedHashMap<String, String>();
+    static {
+        BUILTINS.put("printInt", "(I)V");
+        BUILTINS.put("printDouble", "(D)V");
+        BUILTINS.put("readInt", "()I");
+        BUILTINS.put("readDouble", "()D");
+    }
+
+    private final String name;
+    private final ConstantPool pool = new ConstantPool();
+
+    private ClassAssembler(String name) {
+        this.name = name;
+    }
+
+    /* The class file of class name with these methods. */
+    public static byte[] assemble(String name, List<Compiler.Method> methods) {
+        return new ClassAssembler(name).assemble(methods);
+    }
+
+    /* Defines classes from their bytes, next to the classes of lab2. */
+    public static class Loader extends ClassLoader {
+        public Loader() {
+            super(ClassAssembler.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private byte[] assemble(List<Compiler.Method> methods) {
+        List<byte[]> infos = new ArrayList<byte[]>();
+        for (Compiler.Method m : methods)
+            infos.add(method(ACC_PUBLIC | ACC_STATIC, m.fun.id, m.fun.funType.toJVM(),
+                             new Body(m).assemble()));
+        for (Map.Entry<String, String> b : BUILTINS.entrySet())
+            infos.add(method(ACC_PRIVATE | ACC_STATIC, "$" + b.getKey(), b.getValue(),
+                             builtin(b.getKey(), b.getValue())));
+        for (Compiler.Method m : methods)
+            if (m.fun.id.equals("main") && m.fun.funType.args.isEmpty())
+                infos.add(method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V",
+                                 launcher(m.fun.funType.toJVM())));
+
+        int thisClass = pool.cls(name);
+        int superClass = pool.cls("java/lang/Object");
+        int[][] fields = {
+            { pool.utf8("in"), pool.utf8("LInput;") },
+            { pool.utf8("out"), pool.utf8("LOutput;") }
+        };
+
+        Bytes c = new Bytes();
+        c.u4(0xcafebabe);
+        c.u2(0);
+        c.u2(MAJOR_VERSION);
+        c.u2(pool.count);
+        c.bytes(pool.bytes.toByteArray());
+        c.u2(ACC_PUBLIC | ACC_SUPER);
+        c.u2(thisClass);
+        c.u2(superClass);
+        c.u2(0);                                  // interfaces
+        c.u2(fields.length);
+        for (int[] f : fields) {
+            c.u2(ACC_PUBLIC | ACC_STATIC);
+            c.u2(f[0]);
+            c.u2(f[1]);
+            c.u2(0);
+        }
+        c.u2(infos.size());
+        for (byte[] m : infos)
+            c.bytes(m);
+        c.u2(0);                                  // attributes
+        return c.toByteArray();
+    }
+
+    /* Contents of a Code attribute. */
+    private static class Attribute {
+        final Bytes code = new Bytes();
+        final Bytes frames = new Bytes();
+        final List<int[]> handlers = new ArrayList<int[]>();   // start, end, handler, type
+        int frameCount;
+        int maxStack;
+        int maxLocals;
+    }
+
+    /* method_info with its Code attribute. */
+    private byte[] method(int access, String name, String descriptor, Attribute a) {
+        Bytes m = new Bytes();
+        m.u2(access);
+        m.u2(pool.utf8(name));
+        m.u2(pool.utf8(descriptor));
+        m.u2(1);
+        m.u2(pool.utf8("Code"));
+        m.u4(12 + a.code.size() + 8 * a.handlers.size()
+             + (a.frameCount > 0 ? 8 + a.frames.size() : 0));
+        m.u2(a.maxStack);
+        m.u2(a.maxLocals);
+        m.u4(a.code.size());
+        m.bytes(a.code.toByteArray());
+        m.u2(a.handlers.size());
+        for (int[] h : a.handlers)
+            for (int x : h)
+                m.u2(x);
+        if (a.frameCount > 0) {
+            m.u2(1);
+            m.u2(pool.utf8("StackMapTable"));
+            m.u4(2 + a.frames.size());
+            m.u2(a.frameCount);
+            m.bytes(a.frames.toByteArray());
+        } else {
+            m.u2(0);
+        }
+        return m.toByteArray();
+    }
+
+    ////////////////////////////// Builtins //////////////////////////////
+
+    /* $printInt(I)V is out.printInt(x), $readInt()I is in.readInt(), ... */
+    private Attribute builtin(String fun, String descriptor) {
+        Attribute a = new Attribute();
+        boolean print = fun.startsWith("print");
+        char arg = descriptor.charAt(1);
+        char result = descriptor.charAt(descriptor.length() - 1);
+        a.code.u1(GETSTATIC);
+        a.code.u2(print ? pool.field(name, "out", "LOutput;") : pool.field(name, "in", "LInput;"));
+        if (arg == 'I') a.code.u1(ILOAD_0);
+        if (arg == 'D') a.code.u1(DLOAD_0);
+        a.code.u1(INVOKEVIRTUAL);
+        a.code.u2(pool.method(print ? "Output" : "Input", fun, descriptor));
+        a.code.u1(result == 'I' ? IRETURN : result == 'D' ? DRETURN : RETURN);
+        a.maxLocals = arg == 'D' ? 2 : arg == 'I' ? 1 : 0;
+        a.maxStack = Math.max(1 + a.maxLocals, result == 'D' ? 2 : 1);
+        return a;
+    }
+
+    /* main(String[]) runs the program on stdin and stdout, flushing the
+     * output however main ends. */
+    private Attribute launcher(String mainDescriptor) {
+        Attribute a = new Attribute();
+        Bytes b = a.code;
+        b.u1(NEW);
+        b.u2(pool.cls("Input"));
+        b.u1(DUP);
+        b.u1(GETSTATIC);
+        b.u2(pool.field("java/lang/System", "in", "Ljava/io/InputStream;"));
+        b.u1(INVOKESPECIAL);
+        b.u2(pool.method("Input", "<init>", "(Ljava/io/InputStream;)V"));
+        b.u1(PUTSTATIC);
+        b.u2(pool.field(name, "in", "LInput;"));
+        b.u1(NEW);
+        b.u2(pool.cls("Output"));
+        b.u1(DUP);
+        b.u1(GETSTATIC);
+        b.u2(pool.field("java/lang/System", "out", "Ljava/io/PrintStream;"));
+        b.u1(INVOKESPECIAL);
+        b.u2(pool.method("Output", "<init>", "(Ljava/io/OutputStream;)V"));
+        b.u1(PUTSTATIC);
+        b.u2(pool.field(name, "out", "LOutput;"));
+
+        int start = b.size();
+        b.u1(INVOKESTATIC);
+        b.u2(pool.method(name, "main", mainDescriptor));
+        char result = mainDescriptor.charAt(mainDescriptor.length() - 1);
+        if (result == 'D') b.u1(POP2);
+        else if (result != 'V') b.u1(POP);
+        int end = b.size();
+        flush(b);
+        b.u1(RETURN);
+
+        int handler = b.size();
+        b.u1(ASTORE_1);
+        flush(b);
+        b.u1(ALOAD_1);
+        b.u1(ATHROW);
+        a.handlers.add(new int[] { start, end, handler, 0 });
+
+        /* full_frame at the handler: locals [String[]], stack [Throwable] */
+        a.frames.u1(255);
+        a.frames.u2(handler);
+        a.frames.u2(1);
+        a.frames.u1(7);
+        a.frames.u2(pool.cls("[Ljava/lang/String;"));
+        a.frames.u2(1);
+        a.frames.u1(7);
+        a.frames.u2(pool.cls("java/lang/Throwable"));
+        a.frameCount = 1;
+        a.maxStack = 3;
+        a.maxLocals = 2;
+        return a;
+    }
+
+    private void flush(Bytes b) {
+        b.u1(GETSTATIC);
+        b.u2(pool.field(name, "out", "LOutput;"));
+        b.u1(INVOKEVIRTUAL);
+        b.u2(pool.method("Output", "flush", "()V"));
+    }
+
+    ///////////////////////////// Functions //////////////////////////////
+
+    /* Types of the locals and the operand stack before an instruction. */
+    private static class Frame {
+        final int[] locals;
+        final int[] stack;
+        int sp;
+
+        Frame(int maxLocals, int maxStack) {
+            locals = new int[maxLocals + 1];
+            stack = new int[maxStack];
+        }
+
+        Frame(Frame f) {
+            locals = f.locals.clone();
+            stack = f.stack.clone();
+            sp = f.sp;
+        }
+
+        void push(int t) {
+            stack[sp++] = t;
+        }
+
+        int pop() {
+            return stack[--sp];
+        }
+
+        int top() {
+            return stack[sp - 1];
+        }
+
+        /* Stack depth in slots. */
+        int depth() {
+            int d = 0;
+            for (int i = 0; i < sp; i++)
+                d += size(stack[i]);
+            return d;
+        }
+
+        void store(int addr, int t) {
+            if (addr > 0 && locals[addr - 1] == DOUBLE) locals[addr - 1] = TOP;
+            locals[addr] = t;
+            if (t == DOUBLE) locals[addr + 1] = TOP;
+        }
+
+        /* Merges f into this frame; true if this frame changed. */
+        boolean merge(Frame f) {
+            if (sp != f.sp) throw new RuntimeException("Inconsistent stack at join point");
+            for (int i = 0; i < sp; i++)
+                if (stack[i] != f.stack[i]) throw new RuntimeException("Inconsistent stack at join point");
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (locals[i] != f.locals[i] && locals[i] != TOP) {
+                    locals[i] = TOP;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    /* Assembles one compiled function. */
+    private class Body {
+        final Compiler.Method method;
+        final List<Code> code;
+        final Map<Label, Integer> targets = new IdentityHashMap<Label, Integer>();
+        final Frame[] before;
+        final int paramSlots;
+        final int maxLocals;
+        int maxStack;
+
+        Body(Compiler.Method m) {
+            method = m;
+            code = new ArrayList<Code>(m.code);
+            for (int i = 0; i < code.size(); i++)
+                if (code.get(i) instanceof Target)
+                    targets.put(((Target) code.get(i)).label, i);
+
+            int slots = 0;
+            for (Arg a : m.fun.funType.args)
+                slots += size(type(((ADecl) a).type_));
+            paramSlots = slots;
+            for (Code c : code) {
+                if (c instanceof Load)
+                    slots = Math.max(slots, ((Load) c).addr + size(type(((Load) c).type)));
+                if (c instanceof Store)
+                    slots = Math.max(slots, ((Store) c).addr + size(type(((Store) c).type)));
+                if (c instanceof Inc)
+                    slots = Math.max(slots, ((Inc) c).addr + 1);
+            }
+            maxLocals = slots;
+            before = new Frame[code.size() + 1];
+        }
+
+        Attribute assemble() {
+            /* A stack never holds more than every value pushed so far. */
+            Frame entry = new Frame(maxLocals, code.size() + 1);
+            int slot = 0;
+            for (Arg a : method.fun.funType.args) {
+                int t = type(((ADecl) a).type_);
+                entry.store(slot, t);
+                slot += size(t);
+            }
+
+            Attribute a = new Attribute();
+            zeroLocals(a.code, entry);
+            analyse(entry);
+            emit(a);
+            a.maxLocals = maxLocals;
+            a.maxStack = maxStack;
+            return a;
+        }
+
+        /* Stores zero into every local that is not a parameter, with the
+         * type it is first used at. */
+        void zeroLocals(Bytes b, Frame entry) {
+            boolean[] done = new boolean[maxLocals];
+            for (Code c : code) {
+                int addr;
+                int t;
+                if (c instanceof Load) {
+                    addr = ((Load) c).addr;
+                    t = type(((Load) c).type);
+                } else if (c instanceof Store) {
+                    addr = ((Store) c).addr;
+                    t = type(((Store) c).type);
+                } else if (c instanceof Inc) {
+                    addr = ((Inc) c).addr;
+                    t = INT;
+                } else {
+                    continue;
+                }
+                if (addr < paramSlots || done[addr]) continue;
+                done[addr] = true;
+                b.u1(t == DOUBLE ? DCONST_0 : ICONST_0);
+                local(b, t == DOUBLE ? DSTORE : ISTORE, addr);
+                entry.store(addr, t);
+                maxStack = Math.max(maxStack, size(t));
+            }
+        }
+
+        /* Computes the frame before each reachable instruction. */
+        void analyse(Frame entry) {
+            before[0] = entry;
+            Deque<Integer> work = new ArrayDeque<Integer>();
+            work.push(0);
+            while (!work.isEmpty()) {
+                int i = work.pop();
+                if (i == code.size())
+                    throw new RuntimeException("Control falls off the end of " + method.fun.id);
+                Frame f = new Frame(before[i]);
+                step(code.get(i), f);
+                for (int s : successors(i))
+                    flow(s, f, work);
+            }
+        }
+
+        void flow(int i, Frame f, Deque<Integer> work) {
+            if (before[i] == null) {
+                before[i] = new Frame(f);
+                work.push(i);
+            } else if (before[i].merge(f)) {
+                work.push(i);
+            }
+        }
+
+        List<Integer> successors(int i) {
+            Code c = code.get(i);
+            List<Integer> s = new ArrayList<Integer>(2);
+            if (c instanceof Return) return s;
+            if (c instanceof Goto) {
+                s.add(targets.get(((Goto) c).label));
+                return s;
+            }
+            s.add(i + 1);
+            if (label(c) != null) s.add(targets.get(label(c)));
+            return s;
+        }
+
+        /* Effect of an instruction on the frame. */
+        void step(Code c, Frame f) {
+            if (c instanceof Store) {
+                f.pop();
+                f.store(((Store) c).addr, type(((Store) c).type));
+            } else if (c instanceof Load) {
+                f.push(type(((Load) c).type));
+            } else if (c instanceof IConst) {
+                f.push(INT);
+            } else if (c instanceof DConst) {
+                f.push(DOUBLE);
+            } else if (c instanceof Pop || c instanceof IfZ || c instanceof IfNZ) {
+                f.pop();
+            } else if (c instanceof Dup) {
+                f.push(f.top());
+            } else if (c instanceof Call) {
+                String d = descriptor(((Call) c).fun);
+                for (int k = 0; k < ((Call) c).fun.funType.args.size(); k++)
+                    f.pop();
+                char r = d.charAt(d.length() - 1);
+                if (r == 'D') f.push(DOUBLE);
+                else if (r != 'V') f.push(INT);
+            } else if (label(c) != null) {
+                f.pop();
+                f.pop();
+            } else if (c instanceof Add || c instanceof Mul || c instanceof Div || c instanceof Minus) {
+                f.pop();
+            }
+            maxStack = Math.max(maxStack, f.depth());
+        }
+
+        /* Writes out the reachable instructions and their frames. */
+        void emit(Attribute a) {
+            Bytes b = a.code;
+            int[] offset = new int[code.size() + 1];
+            List<int[]> jumps = new ArrayList<int[]>();     // opcode position, target
+            boolean[] target = new boolean[code.size() + 1];
+
+            for (int i = 0; i < code.size(); i++) {
+                offset[i] = b.size();
+                if (before[i] == null) continue;
+                Code c = code.get(i);
+                Label l = c instanceof Goto ? ((Goto) c).label : label(c);
+                if (l != null) {
+                    int t = targets.get(l);
+                    target[t] = true;
+                    int opcode = GOTO;
+                    if (!(c instanceof Goto)) {
+                        compare(b, c, before[i]);
+                        opcode = jump(c, before[i]);
+                    }
+                    jumps.add(new int[] { b.size(), t });
+                    b.u1(opcode);
+                    b.u2(0);
+                } else {
+                    instruction(b, c, before[i]);
+                }
+            }
+            offset[code.size()] = b.size();
+            if (b.size() > 0xffff)
+                throw new RuntimeException("Function " + method.fun.id + " is too large");
+
+            for (int[] j : jumps) {
+                int delta = offset[j[1]] - j[0];
+                if (delta < Short.MIN_VALUE || delta > Short.MAX_VALUE)
+                    throw new RuntimeException("Function " + method.fun.id + " is too large");
+                b.patch(j[0] + 1, delta);
+            }
+
+            /* Targets that share an offset share its frame, which has to
+             * admit the jumps to any of them. */
+            int last = -1;
+            for (int i = 0; i < code.size(); i++) {
+                if (!target[i]) continue;
+                Frame f = new Frame(before[i]);
+                while (i + 1 < code.size() && offset[i + 1] == offset[i])
+                    if (target[++i]) f.merge(before[i]);
+                frame(a, offset[i] - last - 1, f);
+                last = offset[i];
+            }
+        }
+
+        /* full_frame at offset delta from the previous frame. */
+        void frame(Attribute a, int delta, Frame f) {
+            List<Integer> locals = new ArrayList<Integer>();
+            int n = maxLocals;
+            while (n > 0 && f.locals[n - 1] == TOP) n--;
+            for (int i = 0; i < n; i += size(f.locals[i]))
+                locals.add(f.locals[i]);
+
+            Bytes b = a.frames;
+            b.u1(255);
+            b.u2(delta);
+            b.u2(locals.size());
+            for (int t : locals)
+                b.u1(t);
+            b.u2(f.sp);
+            for (int i = 0; i < f.sp; i++)
+                b.u1(f.stack[i]);
+            a.frameCount++;
+        }
+
+        void instruction(Bytes b, Code c, Frame f) {
+            if (c instanceof Store) {
+                Store s = (Store) c;
+                local(b, type(s.type) == DOUBLE ? DSTORE : ISTORE, s.addr);
+            } else if (c instanceof Load) {
+                Load l = (Load) c;
+                local(b, type(l.type) == DOUBLE ? DLOAD : ILOAD, l.addr);
+            } else if (c instanceof IConst) {
+                int v = ((IConst) c).immed;
+                if (v >= -1 && v <= 5) {
+                    b.u1(ICONST_0 + v);
+                } else if (v == (byte) v) {
+                    b.u1(BIPUSH);
+                    b.u1(v);
+                } else if (v == (short) v) {
+                    b.u1(SIPUSH);
+                    b.u2(v);
+                } else {
+                    int k = pool.integer(v);
+                    if (k < 256) {
+                        b.u1(LDC);
+                        b.u1(k);
+                    } else {
+                        b.u1(LDC_W);
+                        b.u2(k);
+                    }
+                }
+            } else if (c instanceof DConst) {
+                double v = ((DConst) c).immed;
+                if (Double.doubleToRawLongBits(v) == 0) {
+                    b.u1(DCONST_0);
+                } else if (v == 1.0) {
+                    b.u1(DCONST_1);
+                } else {
+                    b.u1(LDC2_W);
+                    b.u2(pool.dbl(v));
+                }
+            } else if (c instanceof Inc) {
+                Inc n = (Inc) c;
+                if (n.addr <= 0xff && n.delta == (byte) (int) n.delta) {
+                    b.u1(IINC);
+                    b.u1(n.addr);
+                    b.u1(n.delta);
+                } else {
+                    b.u1(WIDE);
+                    b.u1(IINC);
+                    b.u2(n.addr);
+                    b.u2(n.delta);
+                }
+            } else if (c instanceof Pop) {
+                b.u1(type(((Pop) c).type) == DOUBLE ? POP2 : POP);
+            } else if (c instanceof Dup) {
+                b.u1(f.top() == DOUBLE ? DUP2 : DUP);
+            } else if (c instanceof Return) {
+                String d = method.fun.funType.toJVM();
+                char r = d.charAt(d.length() - 1);
+                if (((Return) c).type instanceof Type_void && r != 'V') {
+                    /* Falling off the end of a function that returns a value. */
+                    b.u1(r == 'D' ? DCONST_0 : ICONST_0);
+                }
+                b.u1(r == 'V' ? RETURN : r == 'D' ? DRETURN : IRETURN);
+            } else if (c instanceof Call) {
+                Fun fun = ((Call) c).fun;
+                b.u1(INVOKESTATIC);
+                b.u2(pool.method(owner(fun), method(fun), descriptor(fun)));
+            } else if (c instanceof Add) {
+                b.u1(type(((Add) c).type) == DOUBLE ? DADD : IADD);
+            } else if (c instanceof Minus) {
+                b.u1(type(((Minus) c).type) == DOUBLE ? DSUB : ISUB);
+            } else if (c instanceof Mul) {
+                b.u1(type(((Mul) c).type) == DOUBLE ? DMUL : IMUL);
+            } else if (c instanceof Div) {
+                b.u1(type(((Div) c).type) == DOUBLE ? DDIV : IDIV);
+            }
+            /* Comment, Target and Nop assemble to nothing. */
+        }
+
+        /* Doubles are compared before their conditional jump: dcmpg for <
+         * and <=, dcmpl for > and >=, so that NaN satisfies none of them.
+         * == and != go through Double.compare, as in the other engines. */
+        void compare(Bytes b, Code c, Frame f) {
+            if (c instanceof IfZ || c instanceof IfNZ || f.top() != DOUBLE) return;
+            if (c instanceof IfEq || c instanceof IfNEq) {
+                b.u1(INVOKESTATIC);
+                b.u2(pool.method("java/lang/Double", "compare", "(DD)I"));
+            } else {
+                b.u1(c instanceof IfLt || c instanceof IfLe ? DCMPG : DCMPL);
+            }
+        }
+
+        int jump(Code c, Frame f) {
+            if (c instanceof IfZ)  return IFEQ;
+            if (c instanceof IfNZ) return IFNE;
+            boolean d = f.top() == DOUBLE;
+            if (c instanceof IfLt) return d ? IFLT : IF_ICMPLT;
+            if (c instanceof IfGt) return d ? IFGT : IF_ICMPGT;
+            if (c instanceof IfLe) return d ? IFLE : IF_ICMPLE;
+            if (c instanceof IfGe) return d ? IFGE : IF_ICMPGE;
+            if (c instanceof IfEq) return d ? IFEQ : IF_ICMPEQ;
+            return d ? IFNE : IF_ICMPNE;
+        }
+
+        void local(Bytes b, int opcode, int addr) {
+            if (addr <= 3) {
+                int base = opcode == ILOAD ? ILOAD_0 : opcode == DLOAD ? DLOAD_0
+                         : opcode == ISTORE ? ISTORE_0 : DSTORE_0;
+                b.u1(base + addr);
+            } else if (addr <= 0xff) {
+                b.u1(opcode);
+                b.u1(addr);
+            } else {
+                b.u1(WIDE);
+                b.u1(opcode);
+                b.u2(addr);
+            }
+        }
+    }
+
+    /* Calls of Runtime/f go to the builtin $f of this class. */
+    private String owner(Fun f) {
+        String owner = f.id.substring(0, f.id.lastIndexOf('/'));
+        return owner.equals("Runtime") ? name : owner;
+    }
+
+    private String method(Fun f) {
+        String fun = f.id.substring(f.id.lastIndexOf('/') + 1);
+        return f.id.startsWith("Runtime/") ? "$" + fun : fun;
+    }
+
+    private static String descriptor(Fun f) {
+        String fun = f.id.substring(f.id.lastIndexOf('/') + 1);
+        return f.id.startsWith("Runtime/") ? BUILTINS.get(fun) : f.funType.toJVM();
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* Label of a conditional jump, null for any other instruction. */
+    private static Label label(Code c) {
+        if (c instanceof IfZ)   return ((IfZ) c).label;
+        if (c instanceof IfNZ)  return ((IfNZ) c).label;
+        if (c instanceof IfLt)  return ((IfLt) c).label;
+        if (c instanceof IfGt)  return ((IfGt) c).label;
+        if (c instanceof IfLe)  return ((IfLe) c).label;
+        if (c instanceof IfGe)  return ((IfGe) c).label;
+        if (c instanceof IfEq)  return ((IfEq) c).label;
+        if (c instanceof IfNEq) return ((IfNEq) c).label;
+        return null;
+    }
+
+    private static int type(Type t) {
+        return t instanceof Type_double ? DOUBLE : INT;
+    }
+
+    private static int size(int t) {
+        return t == DOUBLE ? 2 : 1;
+    }
+
+    /* Growable big endian byte buffer. */
+    private static class Bytes extends ByteArrayOutputStream {
+        void u1(int v) {
+            write(v);
+        }
+
+        void u2(int v) {
+            write(v >>> 8);
+            write(v);
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        void bytes(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void patch(int pos, int v) {
+            buf[pos] = (byte) (v >>> 8);
+            buf[pos + 1] = (byte) v;
+        }
+    }
+
+    /* Constant pool, each distinct entry added once. */
+    private static class ConstantPool {
+        final Bytes bytes = new Bytes();
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        int count = 1;
+
+        /* The class file's modified UTF-8 is what writeUTF writes. */
+        int utf8(String s) {
+            Integer i = index.get("U" + s);
+            if (i != null) return i;
+            bytes.u1(1);
+            try {
+                new DataOutputStream(bytes).writeUTF(s);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return add("U" + s);
+        }
+
+        int cls(String name) {
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        int nameAndType(String name, String descriptor) {
+            return entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        int field(String owner, String name, String descriptor) {
+            return entry("F" + owner + "." + name + ":" + descriptor, 9, cls(owner),
+                         nameAndType(name, descriptor));
+        }
+
+        int method(String owner, String name, String descriptor) {
+            return entry("M" + owner + "." + name + descriptor, 10, cls(owner),
+                         nameAndType(name, descriptor));
+        }
+
+        int integer(int v) {
+            Integer i = index.get("I" + v);
+            if (i != null) return i;
+            bytes.u1(3);
+            bytes.u4(v);
+            return add("I" + v);
+        }
+
+        /* A double takes two entries of the pool. */
+        int dbl(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            Integer i = index.get("D" + bits);
+            if (i != null) return i;
+            bytes.u1(6);
+            bytes.u4((int) (bits >>> 32));
+            bytes.u4((int) bits);
+            i = add("D" + bits);
+            count++;
+            return i;
+        }
+
+        /* Entry with a tag and one or two u2 references. */
+        private int entry(String key, int tag, int a, int b) {
+            Integer i = index.get(key);
+            if (i != null) return i;
+            bytes.u1(tag);
+            bytes.u2(a);
+            if (b >= 0) bytes.u2(b);
+            return add(key);
+        }
+
+        private int add(String key) {
+            index.put(key, count);
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/* Runs lab2 on a lab2d server: takes the same arguments as lab2, sends
+ * them along with the working directory and standard input, and replays
+ * the program's output, error output and exit status. The server is
+ * found at the socket path or port in $LAB2_SERVER, by default at
+ * Server.DEFAULT_SOCKET; a port also needs the server's token, see
+ * Server.readToken. */
+public class Client {
+
+    public static void main(String args[]) {
+        String target = System.getenv("LAB2_SERVER");
+        if (target == null || target.isEmpty()) target = Server.DEFAULT_SOCKET;
+
+        try {
+            SocketAddress address = Server.address(target);
+            String token = address instanceof UnixDomainSocketAddress ? "" : Server.readToken();
+            final SocketChannel c = SocketChannel.open(address);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Server.outputStream(c)));
+            out.writeUTF(token);
+            out.writeUTF(System.getProperty("user.dir"));
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+
+            /* Standard input goes up on its own thread, as the program
+             * reads it; the server ignores whatever is left at the end. */
+            final OutputStream up = Server.outputStream(c);
+            Thread pump = new Thread() {
+                public void run() {
+                    try {
+                        System.in.transferTo(up);
+                        c.shutdownOutput();
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Server.inputStream(c)));
+            byte[] buf = new byte[8192];
+            while (true) {
+                int tag = in.readByte();
+                int n = in.readInt();
+                if (tag == 'X') {
+                    System.out.flush();
+                    System.err.flush();
+                    System.exit(n);
+                }
+                PrintStream s = tag == 'E' ? System.err : System.out;
+                if (buf.length < n) buf = new byte[n];
+                in.readFully(buf, 0, n);
+                s.write(buf, 0, n);
+                s.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("lab2c: " + target + ": " + e.toString());
+            System.exit(1);
+        }
+    }
+}
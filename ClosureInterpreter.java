@@ -0,0 +1,514 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.util.*;
+
+/* Execution engine that converts each function body once into a tree of
+ * executable nodes and then runs the program by invoking those nodes,
+ * without any visitor dispatch at run time.
+ *
+ * Values are never boxed. Nodes are specialized on the types found by the
+ * TypeChecker and evaluate through evalInt, evalDouble or evalBool. Frames
+ * are long[] holding the raw bits of each variable: ints and bools (0/1)
+ * as is, doubles through Double.doubleToRawLongBits. */
+public class ClosureInterpreter {
+
+    private final TypeChecker checker;
+
+    private Resolver resolver = new Resolver();
+
+    private TailCalls tailCalls = new TailCalls();
+
+    private Map<String, FunNode> funs = new HashMap<String, FunNode>();
+
+    private final StmCompiler stmCompiler = new StmCompiler();
+    private final ExpCompiler expCompiler = new ExpCompiler();
+
+    private final Input in;
+    private final Output out;
+
+    private final boolean memoize;
+
+    /* Where memo table statistics go. */
+    private final PrintStream err;
+
+    /* Value of the most recently executed return statement. */
+    private long ret;
+
+    /* Whether that return statement was a self tail call, whose
+     * arguments are already bound in the frame. */
+    private boolean tailCall;
+
+    public ClosureInterpreter(TypeChecker checker) {
+        this(checker, new Input(System.in), new Output(System.out));
+    }
+
+    public ClosureInterpreter(TypeChecker checker, Input in, Output out) {
+        this(checker, in, out, false);
+    }
+
+    public ClosureInterpreter(TypeChecker checker, Input in, Output out, boolean memoize) {
+        this(checker, in, out, memoize, System.err);
+    }
+
+    public ClosureInterpreter(TypeChecker checker, Input in, Output out, boolean memoize,
+                              PrintStream err) {
+        this.checker = checker;
+        this.in = in;
+        this.out = out;
+        this.memoize = memoize;
+        this.err = err;
+    }
+
+    public void interpret(Program p) {
+        resolver.resolve(p);
+        tailCalls.analyse(p);
+
+        /* Create all functions first, so calls can be linked to them. */
+        for (Def d: ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            funs.put(f.id_, new FunNode(resolver.layout(f.id_)));
+        }
+
+        /* Calls of pure functions are compiled to consult their memo table. */
+        Map<String, MemoTable> memo = null;
+        if (memoize) {
+            memo = MemoTable.forPureFunctions(resolver, p, MemoTable.DEFAULT_CAPACITY);
+            for (MemoTable t: memo.values())
+                funs.get(t.fun).memo = t;
+        }
+
+        for (Def d: ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            funs.get(f.id_).body = compileBlock(f.liststm_);
+        }
+
+        FunNode main = funs.get("main");
+        if (main == null) throw new RuntimeException("Impossible: main function missing");
+        try {
+            main.invoke(new long[main.frameSize]);
+        } finally {
+            out.flush();
+            if (memo != null) MemoTable.report(memo.values(), err);
+        }
+    }
+
+    ////////////////////////////// Nodes //////////////////////////////
+
+    abstract class StmNode {
+        /* Returns true if a return statement was executed. */
+        abstract boolean exec(long[] f);
+    }
+
+    abstract class ExpNode {
+        /* Raw bits of the value, as stored in a frame. */
+        abstract long eval(long[] f);
+        int evalInt(long[] f)       { return (int) eval(f); }
+        double evalDouble(long[] f) { return Double.longBitsToDouble(eval(f)); }
+        boolean evalBool(long[] f)  { return eval(f) != 0; }
+    }
+
+    abstract class IntNode extends ExpNode {
+        abstract int evalInt(long[] f);
+        long eval(long[] f) { return evalInt(f); }
+    }
+
+    abstract class DoubleNode extends ExpNode {
+        abstract double evalDouble(long[] f);
+        long eval(long[] f) { return Double.doubleToRawLongBits(evalDouble(f)); }
+    }
+
+    abstract class BoolNode extends ExpNode {
+        abstract boolean evalBool(long[] f);
+        long eval(long[] f) { return evalBool(f) ? 1 : 0; }
+    }
+
+    class FunNode {
+        /* The resolver's slots, and after them the temporaries of self
+         * tail calls. */
+        int frameSize;
+        final int[] paramSlots;
+        StmNode[] body;
+        MemoTable memo;
+
+        FunNode(Resolver.FunLayout layout) {
+            frameSize = layout.frameSize;
+            paramSlots = layout.paramSlots;
+        }
+
+        long invoke(long[] frame) {
+            restart:
+            while (true) {
+                for (StmNode s: body) {
+                    if (s.exec(frame)) {
+                        if (!tailCall)
+                            return ret;
+                        tailCall = false;
+                        continue restart;
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    ////////////////////////////// Statements //////////////////////////////
+
+    public class StmCompiler implements Stm.Visitor<StmNode, Void>
+    {
+        public StmNode visit(CPP.Absyn.SExp p, Void arg) {
+            final ExpNode e = compile(p.exp_);
+            return new StmNode() {
+                boolean exec(long[] f) { e.eval(f); return false; }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SDecls p, Void arg) {
+            final int[] slots = resolver.slots(p);
+            return new StmNode() {
+                boolean exec(long[] f) {
+                    for (int slot: slots)
+                        f[slot] = 0;
+                    return false;
+                }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SInit p, Void arg) {
+            final ExpNode e = compile(p.exp_);
+            final int slot = resolver.slot(p);
+            return new StmNode() {
+                boolean exec(long[] f) { f[slot] = e.eval(f); return false; }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SReturn p, Void arg) {
+            if (tailCalls.isSelfTailCall(p)) {
+                EApp call = (EApp) p.exp_;
+                Resolver.FunLayout self = resolver.call(call).callee;
+                final int[] params = self.paramSlots;
+                final ExpNode[] args = new ExpNode[params.length];
+                int i = 0;
+                for (Exp e: call.listexp_)
+                    args[i++] = compile(e);
+
+                /* The argument values wait in slots past the function's own. */
+                final int temp = self.frameSize;
+                FunNode fun = funs.get(call.id_);
+                fun.frameSize = Math.max(fun.frameSize, temp + args.length);
+                return new StmNode() {
+                    boolean exec(long[] f) {
+                        /* Evaluate all arguments before overwriting any parameter. */
+                        for (int i = 0; i < args.length; i++)
+                            f[temp + i] = args[i].eval(f);
+                        for (int i = 0; i < args.length; i++)
+                            f[params[i]] = f[temp + i];
+                        tailCall = true;
+                        return true;
+                    }
+                };
+            }
+            final ExpNode e = compile(p.exp_);
+            return new StmNode() {
+                boolean exec(long[] f) { ret = e.eval(f); return true; }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SWhile p, Void arg) {
+            final ExpNode cond = compile(p.exp_);
+            final StmNode body = compile(p.stm_);
+            return new StmNode() {
+                boolean exec(long[] f) {
+                    while (cond.evalBool(f))
+                        if (body.exec(f))
+                            return true;
+                    return false;
+                }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SBlock p, Void arg) {
+            final StmNode[] body = compileBlock(p.liststm_);
+            return new StmNode() {
+                boolean exec(long[] f) {
+                    for (StmNode s: body)
+                        if (s.exec(f))
+                            return true;
+                    return false;
+                }
+            };
+        }
+        public StmNode visit(CPP.Absyn.SIfElse p, Void arg) {
+            final ExpNode cond = compile(p.exp_);
+            final StmNode s1 = compile(p.stm_1);
+            final StmNode s2 = compile(p.stm_2);
+            return new StmNode() {
+                boolean exec(long[] f) {
+                    return cond.evalBool(f) ? s1.exec(f) : s2.exec(f);
+                }
+            };
+        }
+    }
+
+    ////////////////////////////// Expressions //////////////////////////////
+
+    public class ExpCompiler implements Exp.Visitor<ExpNode, Void>
+    {
+        public ExpNode visit(CPP.Absyn.ETrue p, Void arg) {
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return true; }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EFalse p, Void arg) {
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return false; }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EInt p, Void arg) {
+            final int i = p.integer_;
+            return new IntNode() {
+                int evalInt(long[] f) { return i; }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EDouble p, Void arg) {
+            final double d = p.double_;
+            return new DoubleNode() {
+                double evalDouble(long[] f) { return d; }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EId p, Void arg) {
+            final int slot = resolver.slot(p);
+            return new ExpNode() {
+                long eval(long[] f) { return f[slot]; }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EApp p, Void arg) {
+            final ExpNode[] args = new ExpNode[p.listexp_.size()];
+            int i = 0;
+            for (Exp e: p.listexp_)
+                args[i++] = compile(e);
+
+            Builtin builtin = resolver.call(p).builtin;
+            if (builtin != null) {
+                switch (builtin) {
+                    case PrintInt:
+                        return new ExpNode() {
+                            long eval(long[] f) {
+                                out.printInt(args[0].evalInt(f));
+                                return 0;
+                            }
+                        };
+                    case PrintDouble:
+                        return new ExpNode() {
+                            long eval(long[] f) {
+                                out.printDouble(args[0].evalDouble(f));
+                                return 0;
+                            }
+                        };
+                    case ReadInt:
+                        return new IntNode() {
+                            int evalInt(long[] f) { return in.readInt(); }
+                        };
+                    case ReadDouble:
+                        return new DoubleNode() {
+                            double evalDouble(long[] f) { return in.readDouble(); }
+                        };
+                }
+            }
+
+            /* User defined function, linked directly to its node. */
+            final FunNode fun = funs.get(p.id_);
+            if (fun.memo != null) {
+                return new ExpNode() {
+                    long eval(long[] f) {
+                        long[] frame = new long[fun.frameSize];
+                        long[] key = new long[args.length];
+                        for (int i = 0; i < args.length; i++)
+                            frame[fun.paramSlots[i]] = key[i] = args[i].eval(f);
+                        Long hit = fun.memo.get(key);
+                        if (hit != null) return hit;
+                        long v = fun.invoke(frame);
+                        fun.memo.put(key, v);
+                        return v;
+                    }
+                };
+            }
+            return new ExpNode() {
+                long eval(long[] f) {
+                    long[] frame = new long[fun.frameSize];
+                    for (int i = 0; i < args.length; i++)
+                        frame[fun.paramSlots[i]] = args[i].eval(f);
+                    return fun.invoke(frame);
+                }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EPostIncr p, Void arg) {
+            return incr(p, 1, false);
+        }
+        public ExpNode visit(CPP.Absyn.EPostDecr p, Void arg) {
+            return incr(p, -1, false);
+        }
+        public ExpNode visit(CPP.Absyn.EPreIncr p, Void arg) {
+            return incr(p, 1, true);
+        }
+        public ExpNode visit(CPP.Absyn.EPreDecr p, Void arg) {
+            return incr(p, -1, true);
+        }
+        public ExpNode visit(CPP.Absyn.ETimes p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p))
+                return new DoubleNode() {
+                    double evalDouble(long[] f) { return a.evalDouble(f) * b.evalDouble(f); }
+                };
+            return new IntNode() {
+                int evalInt(long[] f) { return a.evalInt(f) * b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EDiv p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p))
+                return new DoubleNode() {
+                    double evalDouble(long[] f) { return a.evalDouble(f) / b.evalDouble(f); }
+                };
+            return new IntNode() {
+                int evalInt(long[] f) { return a.evalInt(f) / b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EPlus p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p))
+                return new DoubleNode() {
+                    double evalDouble(long[] f) { return a.evalDouble(f) + b.evalDouble(f); }
+                };
+            return new IntNode() {
+                int evalInt(long[] f) { return a.evalInt(f) + b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EMinus p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p))
+                return new DoubleNode() {
+                    double evalDouble(long[] f) { return a.evalDouble(f) - b.evalDouble(f); }
+                };
+            return new IntNode() {
+                int evalInt(long[] f) { return a.evalInt(f) - b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.ELt p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p.exp_1))
+                return new BoolNode() {
+                    boolean evalBool(long[] f) { return a.evalDouble(f) < b.evalDouble(f); }
+                };
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalInt(f) < b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EGt p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p.exp_1))
+                return new BoolNode() {
+                    boolean evalBool(long[] f) { return a.evalDouble(f) > b.evalDouble(f); }
+                };
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalInt(f) > b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.ELtEq p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p.exp_1))
+                return new BoolNode() {
+                    boolean evalBool(long[] f) { return a.evalDouble(f) <= b.evalDouble(f); }
+                };
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalInt(f) <= b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EGtEq p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            if (isDouble(p.exp_1))
+                return new BoolNode() {
+                    boolean evalBool(long[] f) { return a.evalDouble(f) >= b.evalDouble(f); }
+                };
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalInt(f) >= b.evalInt(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EEq p, Void arg) {
+            return equal(p.exp_1, p.exp_2, true);
+        }
+        public ExpNode visit(CPP.Absyn.ENEq p, Void arg) {
+            return equal(p.exp_1, p.exp_2, false);
+        }
+        public ExpNode visit(CPP.Absyn.EAnd p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalBool(f) && b.evalBool(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EOr p, Void arg) {
+            final ExpNode a = compile(p.exp_1), b = compile(p.exp_2);
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return a.evalBool(f) || b.evalBool(f); }
+            };
+        }
+        public ExpNode visit(CPP.Absyn.EAss p, Void arg) {
+            final ExpNode e = compile(p.exp_);
+            final int slot = resolver.slot(p);
+            return new ExpNode() {
+                long eval(long[] f) { return f[slot] = e.eval(f); }
+            };
+        }
+
+        /* x++, x--, ++x and --x on an int or double variable. */
+        private ExpNode incr(Exp p, final int delta, final boolean pre) {
+            final int slot = resolver.slot(p);
+            if (isDouble(p))
+                return new DoubleNode() {
+                    double evalDouble(long[] f) {
+                        double v = Double.longBitsToDouble(f[slot]);
+                        f[slot] = Double.doubleToRawLongBits(v + delta);
+                        return pre ? v + delta : v;
+                    }
+                };
+            return new IntNode() {
+                int evalInt(long[] f) {
+                    int v = (int) f[slot];
+                    f[slot] = v + delta;
+                    return pre ? v + delta : v;
+                }
+            };
+        }
+
+        /* == and != on ints, doubles and bools. */
+        private ExpNode equal(Exp e1, Exp e2, final boolean eq) {
+            final ExpNode a = compile(e1), b = compile(e2);
+            if (isDouble(e1))
+                /* Same as Double.equals, which the interpreter uses. */
+                return new BoolNode() {
+                    boolean evalBool(long[] f) {
+                        return (Double.compare(a.evalDouble(f), b.evalDouble(f)) == 0) == eq;
+                    }
+                };
+            return new BoolNode() {
+                boolean evalBool(long[] f) { return (a.eval(f) == b.eval(f)) == eq; }
+            };
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private ExpNode compile(Exp e) {
+        return e.accept(expCompiler, null);
+    }
+
+    private StmNode compile(Stm s) {
+        return s.accept(stmCompiler, null);
+    }
+
+    private StmNode[] compileBlock(ListStm ss) {
+        StmNode[] nodes = new StmNode[ss.size()];
+        int i = 0;
+        for (Stm s: ss)
+            nodes[i++] = compile(s);
+        return nodes;
+    }
+
+    private boolean isDouble(Exp e) {
+        return checker.typeOf(e) instanceof Type_double;
+    }
+}
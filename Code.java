@@ -71,6 +71,28 @@ class IConst extends Code {
     }
 }
 
+class DConst extends Code {
+    public Double immed;
+    public DConst (Double immed) {
+        this.immed = immed;
+    }
+    public <R> R accept (CodeVisitor<R> v) {
+        return v.visit (this);
+    }
+}
+
+class Inc extends Code {
+    public Integer addr;
+    public Integer delta;
+    public Inc (Integer addr, Integer delta) {
+        this.addr = addr;
+        this.delta = delta;
+    }
+    public <R> R accept (CodeVisitor<R> v) {
+        return v.visit (this);
+    }
+}
+
 class Pop extends Code {
     public Type type;
     public Pop (Type type) {
@@ -256,6 +278,10 @@ class Minus extends Code {
 }
 
 class Dup extends Code {
+    public Type type;
+    public Dup (Type type) {
+        this.type = type;
+    }
     public <R> R accept(CodeVisitor<R> v) {
         return v.visit (this);
     }
@@ -272,6 +298,8 @@ interface CodeVisitor<R> {
     public R visit (Store c);
     public R visit (Load c);
     public R visit (IConst c);
+    public R visit (DConst c);
+    public R visit (Inc c);
     public R visit (Pop c);
     public R visit (Return c);
     public R visit (Call c);
@@ -299,29 +327,49 @@ class CodeToJVM implements CodeVisitor<String> {
         return "\n  ;; " + c.comment;
     }
     public String visit (Store c) {
+        String op = prefix(c.type) + "store";
         if (c.addr <= 3)
-            return "istore_" + c.addr + "\n";
-        return "istore " + c.addr + "\n";
+            return op + "_" + c.addr + "\n";
+        return op + " " + c.addr + "\n";
     }
     public String visit (Load c) {
+        String op = prefix(c.type) + "load";
         if (c.addr <= 3)
-            return "iload_" + c.addr + "\n";
-        return "iload " + c.addr + "\n";
+            return op + "_" + c.addr + "\n";
+        return op + " " + c.addr + "\n";
     }
     public String visit (IConst c) {
         if (c.immed >= 0 && c.immed <= 5)
             return "iconst_" + c.immed + "\n";
         if (c.immed == -1)
             return "iconst_m1\n";
+        if (c.immed >= Byte.MIN_VALUE && c.immed <= Byte.MAX_VALUE)
+            return "bipush " + c.immed + "\n";
+        if (c.immed >= Short.MIN_VALUE && c.immed <= Short.MAX_VALUE)
+            return "sipush " + c.immed + "\n";
         return "ldc " + c.immed + "\n";
     }
+    public String visit (DConst c) {
+        if (Double.doubleToRawLongBits(c.immed) == 0)
+            return "dconst_0\n";
+        if (c.immed == 1.0)
+            return "dconst_1\n";
+        return "ldc2_w " + c.immed + "\n";
+    }
+    public String visit (Inc c) {
+        return "iinc " + c.addr + " " + c.delta + "\n";
+    }
     public String visit (Pop c) {
+        if (c.type instanceof Type_double)
+            return "pop2 \n";
         return "pop \n";
     }
     public String visit (Return c) {
         String result = "";
         if (c.type instanceof Type_int || c.type instanceof Type_bool)
             result = "ireturn \n";
+        if (c.type instanceof Type_double)
+            result = "dreturn \n";
         if (c.type instanceof Type_void)
             result = "return \n";
         return result;
@@ -341,40 +389,54 @@ class CodeToJVM implements CodeVisitor<String> {
     public String visit (IfNZ c) {
         return "ifne " + c.label.toJVM() + "\n";
     }
+    // Doubles are compared first: dcmpg for < and <=, dcmpl for > and >=,
+    // so that NaN satisfies none of them. == and != go through
+    // Double.compare, as in the other engines.
     public String visit (IfLt c) {
-        return "if_icmplt " + c.label.toJVM() + "\n";
+        return compare(c.type, "dcmpg", "lt", c.label);
     }
     public String visit (IfGt c) {
-        return "if_icmpgt " + c.label.toJVM() + "\n";
+        return compare(c.type, "dcmpl", "gt", c.label);
     }
     public String visit (IfLe c) {
-        return "if_icmple " + c.label.toJVM() + "\n";
+        return compare(c.type, "dcmpg", "le", c.label);
     }
     public String visit (IfGe c) {
-        return "if_icmpge " + c.label.toJVM() + "\n";
+        return compare(c.type, "dcmpl", "ge", c.label);
     }
     public String visit (IfEq c) {
-        return "if_icmpeq " + c.label.toJVM() + "\n";
+        return compare(c.type, "invokestatic java/lang/Double/compare(DD)I", "eq", c.label);
     }
     public String visit (IfNEq c) {
-        return "if_icmpne " + c.label.toJVM() + "\n";
+        return compare(c.type, "invokestatic java/lang/Double/compare(DD)I", "ne", c.label);
     }
     public String visit (Add c) {
-        return "iadd\n";
+        return prefix(c.type) + "add\n";
     }
     public String visit (Mul c) {
-        return "imul\n";
+        return prefix(c.type) + "mul\n";
     }
     public String visit (Div c) {
-        return "idiv\n";
+        return prefix(c.type) + "div\n";
     }
     public String visit (Minus c) {
-        return "isub\n";
+        return prefix(c.type) + "sub\n";
     }
     public String visit (Dup c) {
+        if (c.type instanceof Type_double)
+            return "dup2\n";
         return "dup\n";
     }
     public String visit (Nop c) {
         return "nop\n";
     }
+
+    private String prefix (Type t) {
+        return t instanceof Type_double ? "d" : "i";
+    }
+    private String compare (Type t, String dcmp, String cond, Label l) {
+        if (t instanceof Type_double)
+            return dcmp + "\n  if" + cond + " " + l.toJVM() + "\n";
+        return "if_icmp" + cond + " " + l.toJVM() + "\n";
+    }
 }
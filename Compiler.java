@@ -6,6 +6,10 @@ public class Compiler
   // The output of the compiler is a list of strings.
   LinkedList<String> output;
 
+  // Functions compiled so far, and the instructions of the current one.
+  List<Method> methods;
+  List<Code> instructions;
+
   // Signature mapping function names to their JVM name and type.
   Map<String,Fun> sig;
 
@@ -27,6 +31,13 @@ public class Compiler
   // Global counter to get next label;
   int nextLabel = 0;
 
+  // Self tail calls, compiled to a jump back to the function entry
+  TailCalls tailCalls = new TailCalls();
+
+  // Entry label and parameter addresses of the current function
+  Label entry;
+  List<CxtEntry> params;
+
 
   // Variable information
   public class CxtEntry {
@@ -35,6 +46,27 @@ public class Compiler
     CxtEntry (Type t, Integer a) { type = t; addr = a; }
   }
 
+  // A compiled function: its name and type, limits and instructions.
+  // declaredLocals is the number of slots before SlotAllocator reused
+  // those of dead variables.
+  public static class Method {
+    public final Fun        fun;
+    public final int        declaredLocals;
+    public final int        limitLocals;
+    public final int        limitStack;
+    public final List<Code> code;
+    Method (Fun f, int d, int l, int s, List<Code> c) {
+      fun = f; declaredLocals = d; limitLocals = l; limitStack = s; code = c;
+    }
+  }
+
+  // Types of expressions, as inferred by the type checker
+  final TypeChecker checker;
+
+  public Compiler(TypeChecker checker) {
+    this.checker = checker;
+  }
+
   // Share type constants
   public final Type BOOL   = new Type_bool  ();
   public final Type INT    = new Type_int   ();
@@ -71,6 +103,34 @@ public class Compiler
     output.add(".end method\n");
     output.add("\n");
 
+    int declared = 0, used = 0;
+    for (Method m: methods(name, p)) {
+      output.add("\n.method public static " + m.fun.toJVM() + "\n");
+      output.add("  ;; locals: " + m.declaredLocals + " declared, " + m.limitLocals + " after slot reuse\n");
+      output.add("  .limit locals " + m.limitLocals + "\n");
+      output.add("  .limit stack " + m.limitStack + "\n\n");
+      for (Code c: m.code) {
+        output.add("  " + c.accept(new CodeToJVM()));
+      }
+      output.add("\n.end method\n");
+      declared += m.declaredLocals;
+      used += m.limitLocals;
+    }
+    output.add("\n;; locals of all methods: " + declared + " declared, " + used + " after slot reuse\n");
+
+    // Concatenate strings in output to .j file content.
+    StringBuilder jtext = new StringBuilder();
+    for (String s: output) {
+      jtext.append(s);
+    }
+    return jtext.toString();
+  }
+
+  // Compile the functions of a program to JVM instructions, in the
+  // order they are defined. Calls are to name/f for function f.
+  public List<Method> methods(String name, CPP.Absyn.Program p) {
+    methods = new ArrayList();
+
     // Create signature
     sig = new TreeMap();
 
@@ -83,9 +143,7 @@ public class Compiler
     sig.put("printInt",    new Fun ("Runtime/printInt"   , new FunType (VOID  , intArg)));
     sig.put("readInt",    new Fun ("Runtime/readInt"   , new FunType (INT  , voidArg)));
     sig.put("printDouble",    new Fun ("Runtime/printDouble"   , new FunType (VOID  , doubleArg)));
-    sig.put("readDouble",    new Fun ("Runtime/readDouble"   , new FunType (VOID  , voidArg)));
-
-
+    sig.put("readDouble",    new Fun ("Runtime/readDouble"   , new FunType (DOUBLE, voidArg)));
 
     // User-defined functions
     for (Def d: ((PDefs)p).listdef_) {
@@ -95,14 +153,9 @@ public class Compiler
     }
 
     // Run compiler
+    tailCalls.analyse(p);
     p.accept(new ProgramVisitor(), null);
-
-    // Concatenate strings in output to .j file content.
-    StringBuilder jtext = new StringBuilder();
-    for (String s: output) {
-      jtext.append(s);
-    }
-    return jtext.toString();
+    return methods;
   }
 
   // Compile program
@@ -131,15 +184,21 @@ public class Compiler
       limitStack   = 0;
       currentStack = 0;
 
-      // save output so far and reset output;
-      LinkedList<String> savedOutput = output;
-      output = new LinkedList();
+      instructions = new ArrayList();
 
       // Compile function
 
       // Add function parameters to context
       for (Arg x: p.listarg_)
         x.accept (new ArgVisitor(), null);
+      int paramSlots = limitLocals;
+      params = new ArrayList();
+      for (Arg x: p.listarg_)
+        params.add(lookupVar(((ADecl)x).id_));
+
+      // Self tail calls jump back here
+      entry = new Label (nextLabel++);
+      emit (new Target(entry));
 
       Stm last_stm = null;
       for (Stm s: p.liststm_) {
@@ -153,18 +212,10 @@ public class Compiler
       if (!(last_stm instanceof SReturn))
         emit(new Return(VOID));
 
-      // add new Output to old output
-      LinkedList<String> newOutput = output;
-      output = savedOutput;
-
       Fun f = new Fun(p.id_, new FunType(p.type_, p.listarg_));
-      output.add("\n.method public static " + f.toJVM() + "\n");
-      output.add("  .limit locals " + limitLocals + "\n");
-      output.add("  .limit stack " + limitStack + "\n\n");
-      for (String s: newOutput) {
-        output.add("  " + s);
-      }
-      output.add("\n.end method\n");
+      List<Code> code = Peephole.optimize(instructions);
+      int slots = SlotAllocator.allocate(code, paramSlots);
+      methods.add(new Method(f, limitLocals, slots, limitStack, code));
       return null;
     }
   }
@@ -187,10 +238,10 @@ public class Compiler
     // e;
     public Void visit(CPP.Absyn.SExp p, Void arg)
     {
-      emit (new Comment(CPP.PrettyPrinter.print(p)));
+      emit (new Comment(PrettyPrint.print(p)));
       p.exp_.accept (new ExpVisitor(), arg);
-      if (!p.exp_.getType().equals(VOID)) {
-        emit (new Pop(p.exp_.getType()));
+      if (!typeOf(p.exp_).equals(VOID)) {
+        emit (new Pop(typeOf(p.exp_)));
       }
       return null;
     }
@@ -198,9 +249,12 @@ public class Compiler
     // int x,y,z;
     public Void visit(CPP.Absyn.SDecls p, Void arg)
     {
-      emit (new Comment(CPP.PrettyPrinter.print(p)));
+      // Declared variables start out as zero, as in the other engines
+      emit (new Comment(PrettyPrint.print(p)));
       for (String x: p.listid_) {
-        newVar(x, p.type_);
+        int addr = newVar(x, p.type_);
+        emit (p.type_.equals(DOUBLE) ? new DConst(0.0) : new IConst(0));
+        emit (new Store (p.type_, addr));
       }
       return null;
     }
@@ -209,7 +263,7 @@ public class Compiler
     public Void visit(CPP.Absyn.SInit p, Void arg)
     {
       // p.type_ p.id_ p.exp_
-      emit (new Comment(CPP.PrettyPrinter.print(p)));
+      emit (new Comment(PrettyPrint.print(p)));
       p.exp_.accept (new ExpVisitor(), arg);
       int addr = newVar (p.id_, p.type_);
       emit (new Store (p.type_, addr));
@@ -220,9 +274,18 @@ public class Compiler
     public Void visit(CPP.Absyn.SReturn p, Void arg)
     {
       // p.exp_getType()
-      emit (new Comment(CPP.PrettyPrinter.print(p)));
+      emit (new Comment(PrettyPrint.print(p)));
+      if (tailCalls.isSelfTailCall(p)) {
+        // Push the arguments, store them into the parameters in
+        // reverse order and restart the function
+        for (Exp e: ((EApp)p.exp_).listexp_) e.accept (new ExpVisitor(), arg);
+        for (int i = params.size() - 1; i >= 0; i--)
+          emit (new Store (params.get(i).type, params.get(i).addr));
+        emit (new Goto(entry));
+        return null;
+      }
       p.exp_.accept (new ExpVisitor(), arg);
-      emit (new Return(p.exp_.getType()));
+      emit (new Return(typeOf(p.exp_)));
       return null;
     }
 
@@ -230,18 +293,19 @@ public class Compiler
     public Void visit(CPP.Absyn.SWhile p, Void arg)
     {
       // p.exp_ p.stm_
-      emit (new Comment("test while-condition (" + CPP.PrettyPrinter.print(p.exp_) + ")\n"));
-      Label start = new Label (nextLabel++);
-      Label done  = new Label (nextLabel++);
-      emit (new Target(start));
-      p.exp_.accept (new ExpVisitor(), arg);
-      emit (new IfZ(done));
-      emit (new Comment("while (" + CPP.PrettyPrinter.print(p.exp_) + ") do:\n"));
+      // The condition is tested at the bottom, so an iteration takes
+      // its conditional jump and no goto.
+      Label body = new Label (nextLabel++);
+      Label test = new Label (nextLabel++);
+      emit (new Goto(test));
+      emit (new Comment("while (" + PrettyPrint.print(p.exp_) + ") do:\n"));
+      emit (new Target(body));
       newBlock();
       p.stm_.accept (this, arg);
       popBlock();
-      emit (new Goto(start));
-      emit (new Target(done));
+      emit (new Comment("test while-condition (" + PrettyPrint.print(p.exp_) + ")\n"));
+      emit (new Target(test));
+      condition (p.exp_, true, body);
       return null;
     }
 
@@ -259,17 +323,16 @@ public class Compiler
     {
       Label t = new Label (nextLabel++);
       Label f = new Label (nextLabel++);
-      emit (new Comment("test if-condition (" + CPP.PrettyPrinter.print(p.exp_) + ")\n"));
-      p.exp_.accept(new ExpVisitor(), arg);
-      emit (new IfZ(f));
+      emit (new Comment("test if-condition (" + PrettyPrint.print(p.exp_) + ")\n"));
+      condition (p.exp_, false, f);
 
-      emit (new Comment("when (" + CPP.PrettyPrinter.print(p.exp_) + ") do: \n"));
+      emit (new Comment("when (" + PrettyPrint.print(p.exp_) + ") do: \n"));
       newBlock();
       p.stm_1.accept(this, arg);
       popBlock();
       emit (new Goto(t));
 
-      emit (new Comment("unless (" + CPP.PrettyPrinter.print(p.exp_) + ") do: \n"));
+      emit (new Comment("unless (" + PrettyPrint.print(p.exp_) + ") do: \n"));
       emit (new Target(f));
       newBlock();
       p.stm_2.accept(this, arg);
@@ -308,7 +371,8 @@ public class Compiler
     // 3.14
     public Void visit(CPP.Absyn.EDouble p, Void arg)
     {
-      throw new RuntimeException ("TODO: compile " + CPP.PrettyPrinter.print(p));
+      emit (new DConst (p.double_));
+      return null;
     }
 
     // x
@@ -335,9 +399,9 @@ public class Compiler
       // p.id_
       CxtEntry ce = lookupVar(p.id_);
       emit(new Load(ce.type, ce.addr));
-      emit(new Dup());
-      emit(new IConst(1));
-      emit(new Add(INT));
+      emit(new Dup(ce.type));
+      emit(one(ce.type, 1));
+      emit(new Add(ce.type));
       emit(new Store(ce.type, ce.addr));
       return null;
     }
@@ -348,9 +412,9 @@ public class Compiler
       // p.id_
       CxtEntry ce = lookupVar(p.id_);
       emit(new Load(ce.type, ce.addr));
-      emit(new Dup());
-      emit(new IConst(-1));
-      emit(new Add(INT));
+      emit(new Dup(ce.type));
+      emit(one(ce.type, -1));
+      emit(new Add(ce.type));
       emit(new Store(ce.type, ce.addr));
       return null;
     }
@@ -361,9 +425,9 @@ public class Compiler
       // p.id_
       CxtEntry ce = lookupVar(p.id_);
       emit(new Load(ce.type, ce.addr));
-      emit(new IConst(1));
-      emit(new Add(INT));
-      emit(new Dup());
+      emit(one(ce.type, 1));
+      emit(new Add(ce.type));
+      emit(new Dup(ce.type));
       emit(new Store(ce.type, ce.addr));
       return null;
     }
@@ -374,9 +438,9 @@ public class Compiler
       // p.id_
       CxtEntry ce = lookupVar(p.id_);
       emit(new Load(ce.type, ce.addr));
-      emit(new IConst(-1));
-      emit(new Add(INT));
-      emit(new Dup());
+      emit(one(ce.type, -1));
+      emit(new Add(ce.type));
+      emit(new Dup(ce.type));
       emit(new Store(ce.type, ce.addr));
       return null;
     }
@@ -386,7 +450,7 @@ public class Compiler
     {
       p.exp_1.accept (this, arg);
       p.exp_2.accept (this, arg);
-      emit(new Mul(p.getType()));
+      emit(new Mul(typeOf(p)));
       return null;
     }
 
@@ -395,17 +459,17 @@ public class Compiler
     {
       p.exp_1.accept (this, arg);
       p.exp_2.accept (this, arg);
-      emit(new Div(p.getType()));
+      emit(new Div(typeOf(p)));
       return null;
     }
 
     //  e + e'
     public Void visit(CPP.Absyn.EPlus p, Void arg)
     {
-      // p.exp_1 p.exp_2 p.getType()
+      // p.exp_1 p.exp_2 typeOf(p)
       p.exp_1.accept (this, arg);
       p.exp_2.accept (this, arg);
-      emit (new Add(p.getType()));
+      emit (new Add(typeOf(p)));
       return null;
     }
 
@@ -414,134 +478,63 @@ public class Compiler
     {
       p.exp_1.accept (this, arg);
       p.exp_2.accept (this, arg);
-      emit (new Minus(p.getType()));
+      emit (new Minus(typeOf(p)));
       return null;
     }
 
     // e < e'
     public Void visit(CPP.Absyn.ELt p, Void arg)
     {
-      // p.exp_1 p.exp_2
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfLt(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e > e'
     public Void visit(CPP.Absyn.EGt p, Void arg)
     {
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfGt(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e <= e'
     public Void visit(CPP.Absyn.ELtEq p, Void arg)
     {
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfLe(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e >= e'
     public Void visit(CPP.Absyn.EGtEq p, Void arg)
     {
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfGe(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e == e'
     public Void visit(CPP.Absyn.EEq p, Void arg)
     {
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfEq(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e != e'
     public Void visit(CPP.Absyn.ENEq p, Void arg)
     {
-      p.exp_1.accept(new ExpVisitor(), arg);
-      p.exp_2.accept(new ExpVisitor(), arg);
-      Label yes  = new Label (nextLabel++);
-      Label done = new Label (nextLabel++);
-      emit (new IfNEq(p.getType(), yes));
-      emit (new IConst(0));
-      emit (new Goto(done));
-      emit (new Target(yes));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e && e'
     public Void visit(CPP.Absyn.EAnd p, Void arg)
     {
-      Label done = new Label (nextLabel++);
-      p.exp_1.accept(new ExpVisitor(), arg);
-      emit (new Dup());
-      emit (new IfZ(done));
-      p.exp_2.accept(new ExpVisitor(), arg);
-      emit (new IfNZ(done));
-      emit (new Pop(p.getType()));
-      emit (new IConst(0));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
     // e || e'
     public Void visit(CPP.Absyn.EOr p, Void arg)
     {
-      Label done = new Label (nextLabel++);
-      p.exp_1.accept(new ExpVisitor(), arg);
-      emit (new Dup());
-      emit (new IfNZ(done));
-      p.exp_2.accept(new ExpVisitor(), arg);
-      emit (new IfZ(done));
-      emit (new Pop(p.getType()));
-      emit (new IConst(1));
-      emit (new Target(done));
+      bool (p);
       return null;
     }
 
@@ -557,43 +550,161 @@ public class Compiler
     }
   }
 
+  // Jumping code: emits a jump to l taken when e evaluates to jumpIf,
+  // and falls through otherwise. Comparisons compile to a compare and
+  // branch, && and || to a branch on each operand.
+  void condition(Exp e, boolean jumpIf, Label l) {
+    if (e instanceof ETrue || e instanceof EFalse) {
+      if ((e instanceof ETrue) == jumpIf)
+        emit (new Goto(l));
+      return;
+    }
+
+    if (e instanceof EAnd || e instanceof EOr) {
+      boolean and = e instanceof EAnd;
+      Exp e1 = and ? ((EAnd)e).exp_1 : ((EOr)e).exp_1;
+      Exp e2 = and ? ((EAnd)e).exp_2 : ((EOr)e).exp_2;
+      if (and == jumpIf) {
+        // Both operands decide: skip the second once the first has not.
+        Label skip = new Label (nextLabel++);
+        condition (e1, !jumpIf, skip);
+        condition (e2, jumpIf, l);
+        emit (new Target(skip));
+      } else {
+        condition (e1, jumpIf, l);
+        condition (e2, jumpIf, l);
+      }
+      return;
+    }
+
+    Exp e1 = null, e2 = null;
+    if      (e instanceof ELt)   { e1 = ((ELt)e).exp_1;   e2 = ((ELt)e).exp_2; }
+    else if (e instanceof EGt)   { e1 = ((EGt)e).exp_1;   e2 = ((EGt)e).exp_2; }
+    else if (e instanceof ELtEq) { e1 = ((ELtEq)e).exp_1; e2 = ((ELtEq)e).exp_2; }
+    else if (e instanceof EGtEq) { e1 = ((EGtEq)e).exp_1; e2 = ((EGtEq)e).exp_2; }
+    else if (e instanceof EEq)   { e1 = ((EEq)e).exp_1;   e2 = ((EEq)e).exp_2; }
+    else if (e instanceof ENEq)  { e1 = ((ENEq)e).exp_1;  e2 = ((ENEq)e).exp_2; }
+
+    if (e1 == null) {
+      e.accept (new ExpVisitor(), null);
+      emit (jumpIf ? new IfNZ(l) : new IfZ(l));
+      return;
+    }
+
+    e1.accept (new ExpVisitor(), null);
+    e2.accept (new ExpVisitor(), null);
+    Type t = typeOf(e1);
+    if (jumpIf) {
+      emit (branch(e, t, false, l));
+    } else if (!t.equals(DOUBLE)) {
+      emit (branch(e, t, true, l));
+    } else {
+      // The negation of a double comparison is no comparison when NaN
+      // is involved, so jump around the jump instead.
+      Label skip = new Label (nextLabel++);
+      emit (branch(e, t, false, skip));
+      emit (new Goto(l));
+      emit (new Target(skip));
+    }
+  }
+
+  // Conditional jump of comparison e of operands of type t, or of its
+  // negation.
+  Code branch(Exp e, Type t, boolean negate, Label l) {
+    if (e instanceof ELt)   return negate ? new IfGe(t, l)  : new IfLt(t, l);
+    if (e instanceof EGt)   return negate ? new IfLe(t, l)  : new IfGt(t, l);
+    if (e instanceof ELtEq) return negate ? new IfGt(t, l)  : new IfLe(t, l);
+    if (e instanceof EGtEq) return negate ? new IfLt(t, l)  : new IfGe(t, l);
+    if (e instanceof EEq)   return negate ? new IfNEq(t, l) : new IfEq(t, l);
+    return                         negate ? new IfEq(t, l)  : new IfNEq(t, l);
+  }
+
+  // A condition used as a value: 1 if it holds, else 0.
+  void bool(Exp e) {
+    Label f    = new Label (nextLabel++);
+    Label done = new Label (nextLabel++);
+    condition (e, false, f);
+    emit (new IConst(1));
+    emit (new Goto(done));
+    currentStack--;    // only one of the constants is pushed
+    emit (new Target(f));
+    emit (new IConst(0));
+    emit (new Target(done));
+  }
+
+  // Stack sizes are counted in slots; a double takes two.
   void emit(Code code) {
-    if (code instanceof Store || code instanceof Pop  ||
-        code instanceof IfZ   || code instanceof IfNZ ||
-        code instanceof Add   || code instanceof Mul  ||
-        code instanceof Div   || code instanceof Minus) {
+    if (code instanceof IfZ || code instanceof IfNZ) {
       currentStack--;
     }
 
-    else if (code instanceof Load || code instanceof IConst ||
-             code instanceof Dup) {
-      incStack();
+    else if (code instanceof Store) {
+      currentStack -= size(((Store)code).type);
+    }
+
+    else if (code instanceof Pop) {
+      currentStack -= size(((Pop)code).type);
+    }
+
+    else if (code instanceof Add) {
+      currentStack -= size(((Add)code).type);
+    }
+
+    else if (code instanceof Mul) {
+      currentStack -= size(((Mul)code).type);
+    }
+
+    else if (code instanceof Div) {
+      currentStack -= size(((Div)code).type);
+    }
+
+    else if (code instanceof Minus) {
+      currentStack -= size(((Minus)code).type);
+    }
+
+    else if (code instanceof Load) {
+      incStack(size(((Load)code).type));
+    }
+
+    else if (code instanceof Dup) {
+      incStack(size(((Dup)code).type));
     }
 
-    else if (code instanceof IfLt || code instanceof IfGt ||
-             code instanceof IfLe || code instanceof IfGe ||
-             code instanceof IfEq || code instanceof IfNEq) {
-      currentStack -= 2;
+    else if (code instanceof IConst) {
+      incStack(1);
     }
 
+    else if (code instanceof DConst) {
+      incStack(2);
+    }
+
+    else if (code instanceof IfLt)  { currentStack -= 2 * size(((IfLt)code).type); }
+    else if (code instanceof IfGt)  { currentStack -= 2 * size(((IfGt)code).type); }
+    else if (code instanceof IfLe)  { currentStack -= 2 * size(((IfLe)code).type); }
+    else if (code instanceof IfGe)  { currentStack -= 2 * size(((IfGe)code).type); }
+    else if (code instanceof IfEq)  { currentStack -= 2 * size(((IfEq)code).type); }
+    else if (code instanceof IfNEq) { currentStack -= 2 * size(((IfNEq)code).type); }
+
     else if (code instanceof Call) {
 
-      // Calling function will decrease the stack by the number of parameters
-      int arg_count = ((Call)code).fun.funType.args.size();
-      currentStack -= arg_count;
+      // Calling function will decrease the stack by the size of the parameters
+      FunType ft = ((Call)code).fun.funType;
+      for (Arg a: ft.args)
+        currentStack -= size(((ADecl)a).type_);
 
-      // If the function has return value, stack size will increase by 1
-      if (!((Call)code).fun.funType.returnType.equals(VOID))
-        incStack();
+      // and increase it by the size of the return value
+      incStack(size(ft.returnType));
 
     }
-    String jvm = code.accept(new CodeToJVM());
-    output.add(jvm);
+    instructions.add(code);
   }
 
+  // A double variable takes two slots.
   int newVar(String id, Type t) {
-    cxt.get(0).put(id, new CxtEntry(t, limitLocals++));
-    return limitLocals - 1;
+    int addr = limitLocals;
+    cxt.get(0).put(id, new CxtEntry(t, addr));
+    limitLocals += size(t);
+    return addr;
   }
 
   CxtEntry lookupVar(String id) {
@@ -604,12 +715,29 @@ public class Compiler
     throw new RuntimeException("Variable " + id + " not found.");
   }
 
-  void incStack() {
-    currentStack++;
+  Type typeOf(Exp e) {
+    return checker.typeOf(e);
+  }
+
+  void incStack(int n) {
+    currentStack += n;
     if (currentStack > limitStack)
       limitStack = currentStack;
   }
 
+  // Size of a value of type t in slots.
+  int size(Type t) {
+    if (t.equals(VOID))   return 0;
+    if (t.equals(DOUBLE)) return 2;
+    return 1;
+  }
+
+  // 1 or -1 as a value of type t.
+  Code one(Type t, int sign) {
+    if (t.equals(DOUBLE)) return new DConst((double) sign);
+    return new IConst(sign);
+  }
+
   void newBlock() {
     cxt.add(0, new TreeMap());
   }
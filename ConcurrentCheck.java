@@ -0,0 +1,128 @@
+import CPP.*;
+import CPP.Absyn.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Checks that type checking gives the same result on many threads at
+ * once as on one: each program is parsed and checked sequentially, then
+ * many times over on a thread pool, each time with its own parser and
+ * TypeChecker, and every run must infer the same type for each
+ * expression, or fail with the same TypeException. Some ill-typed
+ * programs are checked along with the given ones. */
+public class ConcurrentCheck {
+
+    /* Programs every checker must reject, each for a different reason. */
+    static final String[] ILL_TYPED = {
+        "int main() { int x; x = true; return 0; }",
+        "int main() { return y; }",
+        "int f(int x) { return x; } int f(int y) { return y; } int main() { return 0; }",
+        "int main() { double d; d = 1.5; return d; }",
+        "int main() { int x; int x; return 0; }",
+        "bool g() { return 1 < 2.0 && 3; } int main() { return 0; }",
+        "int main() { printInt(f(1, 2)); return 0; } int f(int x) { return x; }",
+        "void main() { }",
+    };
+
+    static final int ROUNDS = 20;
+
+    public static void usage() {
+        System.err.println("Usage: ConcurrentCheck [-j <threads>] <SourceFile>...");
+        System.err.println("  -j <n>     number of worker threads (default: twice the number of cores)");
+        System.exit(1);
+    }
+
+    public static void main(String args[]) throws Exception {
+        int threads = 2 * Runtime.getRuntime().availableProcessors();
+        List<String> names = new ArrayList<String>();
+        List<String> sources = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j")) {
+                if (++i == args.length) usage();
+                try {
+                    threads = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else {
+                names.add(args[i]);
+                sources.add(new String(Files.readAllBytes(Paths.get(args[i])), "UTF-8"));
+            }
+        }
+        if (names.isEmpty()) usage();
+        for (int i = 0; i < ILL_TYPED.length; i++) {
+            names.add("ill-typed #" + (i + 1));
+            sources.add(ILL_TYPED[i]);
+        }
+
+        final List<String> expected = new ArrayList<String>();
+        for (String source : sources)
+            expected.add(check(source));
+        for (int i = names.size() - ILL_TYPED.length; i < names.size(); i++)
+            if (!expected.get(i).startsWith("TYPE ERROR")) {
+                System.err.println(names.get(i) + ": not rejected");
+                System.exit(1);
+            }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<String>> actual = new ArrayList<Future<String>>();
+        for (int round = 0; round < ROUNDS; round++)
+            for (final String source : sources)
+                actual.add(pool.submit(new Callable<String>() {
+                    public String call() {
+                        return check(source);
+                    }
+                }));
+        int failures = 0;
+        for (int i = 0; i < actual.size(); i++) {
+            int k = i % sources.size();
+            String result = actual.get(i).get();
+            if (!result.equals(expected.get(k))) {
+                if (failures++ < 10) {
+                    System.err.println(names.get(k) + ": differs from the sequential run");
+                    System.err.println("  expected: " + firstLine(expected.get(k)));
+                    System.err.println("  actual:   " + firstLine(result));
+                }
+            }
+        }
+        pool.shutdown();
+        System.out.println(actual.size() + " checks of " + sources.size() + " programs on "
+                           + threads + " threads, " + failures + " differing");
+        if (failures > 0) System.exit(1);
+    }
+
+    /* The outcome of checking source: the type inferred for each of its
+     * expressions in the order they are written, one per line, or the
+     * message of the TypeException it was rejected with. */
+    static String check(String source) {
+        Program tree;
+        try {
+            Yylex l = new Yylex(new StringReader(source));
+            tree = new parser(l, l.getSymbolFactory()).pProgram();
+        } catch (Exception e) {
+            return "SYNTAX ERROR " + e.getMessage();
+        }
+        final TypeChecker checker = new TypeChecker();
+        try {
+            checker.typecheck(tree);
+        } catch (TypeException e) {
+            return "TYPE ERROR " + e.getMessage();
+        }
+        final StringBuilder types = new StringBuilder();
+        Walker walker = new Walker() {
+            void expression(Exp e) {
+                Type t = checker.typeOf(e);
+                types.append(t == null ? "none" : t.getClass().getSimpleName()).append('\n');
+            }
+        };
+        for (Def d : ((PDefs) tree).listdef_)
+            walker.walk(((DFun) d).liststm_);
+        return types.toString();
+    }
+
+    static String firstLine(String s) {
+        int i = s.indexOf('\n');
+        return i < 0 ? s : s.substring(0, i) + " ...";
+    }
+}
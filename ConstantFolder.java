@@ -0,0 +1,357 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Constant folding and propagation over a type checked program, run
+ * before any engine sees it.
+ *
+ * Arithmetic and comparisons of literals are computed, && and || with a
+ * literal operand are simplified, and if, while and expression
+ * statements with constant conditions or values are pruned. A local
+ * declared with a constant initializer, whose name the function never
+ * assigns, increments or declares without initializer, is replaced by
+ * its value and its declaration dropped.
+ *
+ * Nothing that may have an effect is removed or reordered. Integer
+ * division by zero is left for run time, and double results that are
+ * not finite or are -0.0 are not folded, since they have no literal.
+ * Nodes that do not change are shared with the input; every expression
+ * of the result has its type in the new TypeChecker. */
+public class ConstantFolder {
+
+    private final TypeChecker checker;
+    private final Map<Exp, Type> types = new IdentityHashMap<Exp, Type>();
+
+    /* Constants of the locals in scope; null marks a local that is not. */
+    private final LinkedList<Map<String, Exp>> scopes = new LinkedList<Map<String, Exp>>();
+
+    /* Names the current function changes after their declaration. */
+    private Set<String> assigned;
+
+    private final ExpVisitor expVisitor = new ExpVisitor();
+    private final StmVisitor stmVisitor = new StmVisitor();
+
+    private static final Type BOOL = new Type_bool();
+    private static final Type INT = new Type_int();
+    private static final Type DOUBLE = new Type_double();
+
+    private ConstantFolder(TypeChecker checker) {
+        this.checker = checker;
+    }
+
+    public static CheckedProgram fold(CheckedProgram p) {
+        ConstantFolder f = new ConstantFolder(p.checker);
+        ListDef defs = new ListDef();
+        for (Def d : ((PDefs) p.tree).listdef_)
+            defs.add(f.function((DFun) d));
+        return new CheckedProgram(new PDefs(defs), new TypeChecker(f.types));
+    }
+
+    private DFun function(DFun p) {
+        assigned = assignedIn(p.liststm_);
+
+        scopes.clear();
+        scopes.push(new HashMap<String, Exp>());
+        for (Arg a : p.listarg_)
+            scopes.peek().put(((ADecl) a).id_, null);
+        return new DFun(p.type_, p.id_, p.listarg_, block(p.liststm_));
+    }
+
+    ///////////////////////////// Statements //////////////////////////////
+
+    /* Folds each statement, returning null for those that vanish. */
+    public class StmVisitor implements Stm.Visitor<Stm, Void>
+    {
+        public Stm visit(CPP.Absyn.SExp p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            if (isLiteral(e) || e instanceof EId) return null;
+            return e == p.exp_ ? p : new SExp(e);
+        }
+        public Stm visit(CPP.Absyn.SDecls p, Void arg)
+        {
+            for (String x : p.listid_)
+                scopes.peek().put(x, null);
+            return p;
+        }
+        public Stm visit(CPP.Absyn.SInit p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            if (isLiteral(e) && !assigned.contains(p.id_)) {
+                scopes.peek().put(p.id_, e);
+                return null;
+            }
+            scopes.peek().put(p.id_, null);
+            return e == p.exp_ ? p : new SInit(p.type_, p.id_, e);
+        }
+        public Stm visit(CPP.Absyn.SReturn p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            return e == p.exp_ ? p : new SReturn(e);
+        }
+        public Stm visit(CPP.Absyn.SWhile p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            if (e instanceof EFalse) return null;
+            return new SWhile(e, branch(p.stm_));
+        }
+        public Stm visit(CPP.Absyn.SBlock p, Void arg)
+        {
+            return new SBlock(block(p.liststm_));
+        }
+        public Stm visit(CPP.Absyn.SIfElse p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            if (e instanceof ETrue) return scoped(branch(p.stm_1));
+            if (e instanceof EFalse) return scoped(branch(p.stm_2));
+            return new SIfElse(e, branch(p.stm_1), branch(p.stm_2));
+        }
+    }
+
+    /* Statements in a scope of their own. */
+    private ListStm block(ListStm ss) {
+        scopes.push(new HashMap<String, Exp>());
+        ListStm out = new ListStm();
+        for (Stm s : ss) {
+            Stm t = s.accept(stmVisitor, null);
+            if (t != null) out.add(t);
+        }
+        scopes.pop();
+        return out;
+    }
+
+    /* The body of an if or while, which is a scope of its own. */
+    private Stm branch(Stm s) {
+        scopes.push(new HashMap<String, Exp>());
+        Stm t = s.accept(stmVisitor, null);
+        scopes.pop();
+        if (t == null) return new SBlock(new ListStm());
+        return t;
+    }
+
+    /* A branch taking the place of its if in the enclosing block, keeping
+     * the scope that its declarations had. */
+    private static Stm scoped(Stm s) {
+        if (s instanceof SBlock) return s;
+        ListStm ss = new ListStm();
+        ss.add(s);
+        return new SBlock(ss);
+    }
+
+    ///////////////////////////// Expressions /////////////////////////////
+
+    /* Folds each expression, returning it if nothing changed. */
+    public class ExpVisitor implements Exp.Visitor<Exp, Void>
+    {
+        public Exp visit(CPP.Absyn.ETrue p, Void arg)   { return p; }
+        public Exp visit(CPP.Absyn.EFalse p, Void arg)  { return p; }
+        public Exp visit(CPP.Absyn.EInt p, Void arg)    { return p; }
+        public Exp visit(CPP.Absyn.EDouble p, Void arg) { return p; }
+
+        public Exp visit(CPP.Absyn.EId p, Void arg)
+        {
+            for (Map<String, Exp> scope : scopes)
+                if (scope.containsKey(p.id_)) {
+                    Exp value = scope.get(p.id_);
+                    return value == null ? p : copy(value);
+                }
+            return p;
+        }
+        public Exp visit(CPP.Absyn.EApp p, Void arg)
+        {
+            ListExp args = new ListExp();
+            boolean changed = false;
+            for (Exp e : p.listexp_) {
+                Exp f = fold(e);
+                changed |= f != e;
+                args.add(f);
+            }
+            return changed ? new EApp(p.id_, args) : p;
+        }
+
+        public Exp visit(CPP.Absyn.EPostIncr p, Void arg) { return p; }
+        public Exp visit(CPP.Absyn.EPostDecr p, Void arg) { return p; }
+        public Exp visit(CPP.Absyn.EPreIncr p, Void arg)  { return p; }
+        public Exp visit(CPP.Absyn.EPreDecr p, Void arg)  { return p; }
+
+        public Exp visit(CPP.Absyn.ETimes p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            Exp same = a == p.exp_1 && b == p.exp_2 ? p : new ETimes(a, b);
+            if (isInt(a) && isInt(b)) return integer(intOf(a) * intOf(b));
+            if (isDouble(a) && isDouble(b)) return real(doubleOf(a) * doubleOf(b), same);
+            return same;
+        }
+        public Exp visit(CPP.Absyn.EDiv p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            Exp same = a == p.exp_1 && b == p.exp_2 ? p : new EDiv(a, b);
+            if (isInt(a) && isInt(b) && intOf(b) != 0) return integer(intOf(a) / intOf(b));
+            if (isDouble(a) && isDouble(b)) return real(doubleOf(a) / doubleOf(b), same);
+            return same;
+        }
+        public Exp visit(CPP.Absyn.EPlus p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            Exp same = a == p.exp_1 && b == p.exp_2 ? p : new EPlus(a, b);
+            if (isInt(a) && isInt(b)) return integer(intOf(a) + intOf(b));
+            if (isDouble(a) && isDouble(b)) return real(doubleOf(a) + doubleOf(b), same);
+            return same;
+        }
+        public Exp visit(CPP.Absyn.EMinus p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            Exp same = a == p.exp_1 && b == p.exp_2 ? p : new EMinus(a, b);
+            if (isInt(a) && isInt(b)) return integer(intOf(a) - intOf(b));
+            if (isDouble(a) && isDouble(b)) return real(doubleOf(a) - doubleOf(b), same);
+            return same;
+        }
+
+        public Exp visit(CPP.Absyn.ELt p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) < number(b));
+            return a == p.exp_1 && b == p.exp_2 ? p : new ELt(a, b);
+        }
+        public Exp visit(CPP.Absyn.EGt p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) > number(b));
+            return a == p.exp_1 && b == p.exp_2 ? p : new EGt(a, b);
+        }
+        public Exp visit(CPP.Absyn.ELtEq p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) <= number(b));
+            return a == p.exp_1 && b == p.exp_2 ? p : new ELtEq(a, b);
+        }
+        public Exp visit(CPP.Absyn.EGtEq p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) >= number(b));
+            return a == p.exp_1 && b == p.exp_2 ? p : new EGtEq(a, b);
+        }
+        public Exp visit(CPP.Absyn.EEq p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) == number(b));
+            if (isBool(a) && isBool(b)) return bool(a.getClass() == b.getClass());
+            return a == p.exp_1 && b == p.exp_2 ? p : new EEq(a, b);
+        }
+        public Exp visit(CPP.Absyn.ENEq p, Void arg)
+        {
+            Exp a = fold(p.exp_1), b = fold(p.exp_2);
+            if (isNumber(a) && isNumber(b)) return bool(number(a) != number(b));
+            if (isBool(a) && isBool(b)) return bool(a.getClass() != b.getClass());
+            return a == p.exp_1 && b == p.exp_2 ? p : new ENEq(a, b);
+        }
+
+        /* The second operand only runs when the first leaves the result
+         * open, so it may go whenever the first decides; the first has to
+         * stay unless it is a literal. */
+        public Exp visit(CPP.Absyn.EAnd p, Void arg)
+        {
+            Exp a = fold(p.exp_1);
+            if (a instanceof EFalse) return a;
+            Exp b = fold(p.exp_2);
+            if (a instanceof ETrue) return b;
+            if (b instanceof ETrue) return a;
+            return a == p.exp_1 && b == p.exp_2 ? p : new EAnd(a, b);
+        }
+        public Exp visit(CPP.Absyn.EOr p, Void arg)
+        {
+            Exp a = fold(p.exp_1);
+            if (a instanceof ETrue) return a;
+            Exp b = fold(p.exp_2);
+            if (a instanceof EFalse) return b;
+            if (b instanceof EFalse) return a;
+            return a == p.exp_1 && b == p.exp_2 ? p : new EOr(a, b);
+        }
+
+        public Exp visit(CPP.Absyn.EAss p, Void arg)
+        {
+            Exp e = fold(p.exp_);
+            return e == p.exp_ ? p : new EAss(p.id_, e);
+        }
+    }
+
+    /* Folds e and records the type of the result. */
+    private Exp fold(Exp e) {
+        Exp f = e.accept(expVisitor, null);
+        if (!types.containsKey(f)) types.put(f, checker.typeOf(e));
+        return f;
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* The names ss assigns, increments, decrements or declares without a
+     * value, in any scope. */
+    static Set<String> assignedIn(ListStm ss) {
+        final Set<String> names = new HashSet<String>();
+        new Walker() {
+            void assigned(String x) { names.add(x); }
+            void declared(String x) { names.add(x); }
+        }.walk(ss);
+        return names;
+    }
+
+    private static boolean isLiteral(Exp e) {
+        return isNumber(e) || isBool(e);
+    }
+
+    private static boolean isNumber(Exp e) {
+        return isInt(e) || isDouble(e);
+    }
+
+    private static boolean isInt(Exp e) {
+        return e instanceof EInt;
+    }
+
+    private static boolean isDouble(Exp e) {
+        return e instanceof EDouble;
+    }
+
+    private static boolean isBool(Exp e) {
+        return e instanceof ETrue || e instanceof EFalse;
+    }
+
+    private static int intOf(Exp e) {
+        return ((EInt) e).integer_;
+    }
+
+    private static double doubleOf(Exp e) {
+        return ((EDouble) e).double_;
+    }
+
+    /* Operands of a comparison have the same type; ints compare exactly
+     * as doubles. */
+    private static double number(Exp e) {
+        return isInt(e) ? intOf(e) : doubleOf(e);
+    }
+
+    private Exp integer(int v) {
+        return typed(new EInt(v), INT);
+    }
+
+    private Exp bool(boolean v) {
+        return typed(v ? new ETrue() : new EFalse(), BOOL);
+    }
+
+    /* The literal of v, or the unfolded operation if v has none. */
+    private Exp real(double v, Exp unfolded) {
+        if (Double.isInfinite(v) || Double.isNaN(v) || Double.doubleToRawLongBits(v) == Long.MIN_VALUE)
+            return unfolded;
+        return typed(new EDouble(v), DOUBLE);
+    }
+
+    /* A fresh literal, so that no node appears twice in the tree. */
+    private Exp copy(Exp literal) {
+        if (literal instanceof EInt) return integer(intOf(literal));
+        if (literal instanceof EDouble) return typed(new EDouble(doubleOf(literal)), DOUBLE);
+        return bool(literal instanceof ETrue);
+    }
+
+    private Exp typed(Exp e, Type t) {
+        types.put(e, t);
+        return e;
+    }
+}
@@ -0,0 +1,7 @@
+public enum Engine {
+    Visitor,
+    Closure,
+    Bytecode,
+    Jvm,
+    Tiered
+}
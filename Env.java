@@ -1,10 +1,12 @@
 import java.util.*;
 import CPP.Absyn.*;
 
+/* Type checking environment of one program. Not shared between
+ * TypeChecker runs, so programs can be checked concurrently. */
 public class Env {
-    public static HashMap<String, FunType> signature;           // Funtion signatures
-    public static LinkedList<HashMap<String, Type>> contexts;   // Scopes
-    private static Type returnType;                             // Current function return types
+    private final HashMap<String, FunType> signature;           // Funtion signatures
+    private final LinkedList<HashMap<String, Type>> contexts;   // Scopes
+    private Type returnType;                                    // Current function return types
 
     public Env() {
         signature = new HashMap<String, FunType>();
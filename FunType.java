@@ -9,4 +9,21 @@ public class FunType {
         this.returnType = r;
         this.args = a; 
     }
+
+    // JVM method descriptor, e.g. (ID)V
+    public String toJVM() {
+        StringBuilder sb = new StringBuilder("(");
+        for (Arg a : args)
+            sb.append(toJVM(((ADecl) a).type_));
+        sb.append(")");
+        sb.append(toJVM(returnType));
+        return sb.toString();
+    }
+
+    public static String toJVM(Type t) {
+        if (t instanceof Type_int)    return "I";
+        if (t instanceof Type_double) return "D";
+        if (t instanceof Type_bool)   return "Z";
+        return "V";
+    }
 }
\ No newline at end of file
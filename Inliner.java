@@ -0,0 +1,478 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Inlines calls of small functions, run before any engine sees the
+ * program.
+ *
+ * Functions are visited callees first, along the strongly connected
+ * components of the call graph, so a function is measured after the
+ * calls in it have been inlined. Functions that are recursive, directly
+ * or through others, main, and those larger than the limit, counted in
+ * statements and expressions, are never inlined.
+ *
+ * A function whose body is a single return, called with arguments that
+ * have no effect and cannot fail, is replaced by the returned expression
+ * with the arguments substituted for its parameters, unless that would
+ * compute a non-trivial argument twice. Otherwise calls that are whole
+ * statements, the value of an assignment, initialization or return are
+ * replaced by a block that initializes the parameters from the arguments
+ * and then runs the body, with every variable renamed to a fresh name
+ * that no source program can use. The returns of that body must be the
+ * last statement run, where they turn into the assignment or are
+ * dropped, and when the value is used every path has to end in one. */
+public class Inliner {
+
+    public static final int DEFAULT_LIMIT = 30;
+
+    /* What a return of an inlined body turns into. */
+    private interface Result {
+        Stm of(Exp value);
+    }
+
+    private final TypeChecker checker;
+    private final int limit;
+
+    private final Map<String, DFun> funs = new LinkedHashMap<String, DFun>();
+    private final Map<String, Set<String>> calls = new HashMap<String, Set<String>>();
+
+    /* Functions after inlining into them, and those that may be inlined. */
+    private final Map<String, DFun> done = new HashMap<String, DFun>();
+    private final Map<String, DFun> inlinable = new HashMap<String, DFun>();
+
+    /* State of Tarjan's algorithm. */
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private final Map<String, Integer> low = new HashMap<String, Integer>();
+    private final Deque<String> stack = new ArrayDeque<String>();
+
+    private final Copy plain = new Copy(false, null);
+    private final Inline inline = new Inline();
+    private int fresh;
+    private int inlined;
+
+    private Inliner(TypeChecker checker, int limit) {
+        this.checker = checker;
+        this.limit = limit;
+    }
+
+    /* The program with calls inlined, or p itself if none were; a limit
+     * of 0 turns inlining off. */
+    public static CheckedProgram inline(CheckedProgram p, int limit) {
+        if (limit <= 0) return p;
+        Inliner in = new Inliner(p.checker, limit);
+        Program tree = in.program((PDefs) p.tree);
+        if (in.inlined == 0) return p;
+        TypeChecker checker = new TypeChecker();
+        checker.typecheck(tree);
+        return new CheckedProgram(tree, checker);
+    }
+
+    private Program program(PDefs p) {
+        for (Def d : p.listdef_)
+            funs.put(((DFun) d).id_, (DFun) d);
+        for (DFun f : funs.values())
+            calls.put(f.id_, callees(f));
+        for (String f : funs.keySet())
+            if (!index.containsKey(f)) connect(f);
+
+        ListDef defs = new ListDef();
+        for (String f : funs.keySet())
+            defs.add(done.get(f));
+        return new PDefs(defs);
+    }
+
+    private Set<String> callees(DFun f) {
+        final Set<String> s = new HashSet<String>();
+        new Walker() {
+            void expression(Exp e) {
+                if (e instanceof EApp && funs.containsKey(((EApp) e).id_)) s.add(((EApp) e).id_);
+            }
+        }.walk(f.liststm_);
+        return s;
+    }
+
+    /* Tarjan's algorithm, which completes the components callees first. */
+    private void connect(String f) {
+        index.put(f, index.size());
+        low.put(f, index.get(f));
+        stack.push(f);
+        for (String g : calls.get(f)) {
+            if (!index.containsKey(g)) {
+                connect(g);
+                low.put(f, Math.min(low.get(f), low.get(g)));
+            } else if (stack.contains(g)) {
+                low.put(f, Math.min(low.get(f), index.get(g)));
+            }
+        }
+        if (!low.get(f).equals(index.get(f))) return;
+
+        List<String> component = new ArrayList<String>();
+        String g;
+        do {
+            g = stack.pop();
+            component.add(g);
+        } while (!g.equals(f));
+
+        for (String h : component) {
+            DFun d = funs.get(h);
+            DFun e = new DFun(d.type_, d.id_, d.listarg_, inline.block(d.liststm_));
+            done.put(h, e);
+            boolean recursive = component.size() > 1 || calls.get(h).contains(h);
+            if (!recursive && !h.equals("main") && size(e.liststm_) <= limit)
+                inlinable.put(h, e);
+        }
+    }
+
+    ////////////////////////////// Call sites /////////////////////////////
+
+    /* Copies a function body, inlining the calls in it. */
+    private class Inline extends Copy
+    {
+        Inline() {
+            super(false, null);
+        }
+
+        public ListStm visit(CPP.Absyn.SExp p, Void arg)
+        {
+            if (p.exp_ instanceof EApp) {
+                ListStm s = expand((EApp) p.exp_, new Result() {
+                    public Stm of(Exp value) { return new SExp(value); }
+                }, false);
+                if (s != null) return s;
+            }
+            if (p.exp_ instanceof EAss && ((EAss) p.exp_).exp_ instanceof EApp) {
+                EAss a = (EAss) p.exp_;
+                ListStm s = expand((EApp) a.exp_, assign(a.id_), true);
+                if (s != null) return s;
+            }
+            return super.visit(p, arg);
+        }
+        public ListStm visit(CPP.Absyn.SInit p, Void arg)
+        {
+            if (p.exp_ instanceof EApp && !mentions((EApp) p.exp_, p.id_)) {
+                ListStm s = expand((EApp) p.exp_, assign(p.id_), true);
+                if (s != null) {
+                    ListId x = new ListId();
+                    x.add(p.id_);
+                    s.addFirst(new SDecls(p.type_, x));
+                    return s;
+                }
+            }
+            return super.visit(p, arg);
+        }
+        public ListStm visit(CPP.Absyn.SReturn p, Void arg)
+        {
+            if (p.exp_ instanceof EApp) {
+                ListStm s = expand((EApp) p.exp_, null, true);
+                if (s != null) return s;
+            }
+            return super.visit(p, arg);
+        }
+
+        public Exp visit(CPP.Absyn.EApp p, Void arg)
+        {
+            DFun f = inlinable.get(p.id_);
+            if (f != null && substitutable(f, p)) return substitute(f, p);
+            return super.visit(p, arg);
+        }
+    }
+
+    /* The block running the body of the function called, whose returns
+     * become what result makes of them, or stay returns if it is null. */
+    private ListStm expand(EApp call, Result result, boolean value) {
+        DFun f = inlinable.get(call.id_);
+        if (f == null || substitutable(f, call)) return null;
+        if (result != null && !returnsLast(f.liststm_)) return null;
+        if ((result == null || value) && !alwaysReturns(f.liststm_)) return null;
+
+        ListStm body = new ListStm();
+        Copy copy = new Copy(true, result);
+        copy.scopes.push(new HashMap<String, Exp>());
+        Iterator<Exp> args = call.listexp_.iterator();
+        for (Arg a : f.listarg_) {
+            ADecl d = (ADecl) a;
+            body.addAll(new SInit(d.type_, copy.declare(d.id_), args.next()).accept(inline, null));
+        }
+        for (Stm s : f.liststm_)
+            body.addAll(s.accept(copy, null));
+        inlined++;
+        return one(new SBlock(body));
+    }
+
+    /* Whether the call may become the expression its function returns. */
+    private boolean substitutable(DFun f, EApp call) {
+        if (f.liststm_.size() != 1 || !(f.liststm_.getFirst() instanceof SReturn)) return false;
+        Exp body = ((SReturn) f.liststm_.getFirst()).exp_;
+        if (!assigned(body).isEmpty()) return false;
+
+        Map<String, Integer> uses = uses(body);
+        Iterator<Exp> args = call.listexp_.iterator();
+        for (Arg a : f.listarg_) {
+            Exp e = args.next();
+            Integer n = uses.get(((ADecl) a).id_);
+            if (!pure(e) || !(e instanceof EId || isLiteral(e) || n == null || n == 1))
+                return false;
+        }
+        return true;
+    }
+
+    private Exp substitute(DFun f, EApp call) {
+        Copy copy = new Copy(false, null);
+        copy.scopes.push(new HashMap<String, Exp>());
+        Iterator<Exp> args = call.listexp_.iterator();
+        for (Arg a : f.listarg_)
+            copy.scopes.peek().put(((ADecl) a).id_, args.next().accept(inline, null));
+        inlined++;
+        return ((SReturn) f.liststm_.getFirst()).exp_.accept(copy, null);
+    }
+
+    private Result assign(final String x) {
+        return new Result() {
+            public Stm of(Exp value) { return new SExp(new EAss(x, value)); }
+        };
+    }
+
+    ////////////////////////////// Copying ////////////////////////////////
+
+    /* Copies statements and expressions, replacing the variables bound in
+     * scopes by their values. When renaming, every declaration binds its
+     * variable to a fresh one. */
+    private class Copy implements Stm.Visitor<ListStm, Void>, Exp.Visitor<Exp, Void>
+    {
+        final LinkedList<Map<String, Exp>> scopes = new LinkedList<Map<String, Exp>>();
+        final boolean rename;
+        final Result result;
+
+        Copy(boolean rename, Result result) {
+            this.rename = rename;
+            this.result = result;
+        }
+
+        public ListStm visit(CPP.Absyn.SExp p, Void arg)
+        {
+            return one(new SExp(p.exp_.accept(this, null)));
+        }
+        public ListStm visit(CPP.Absyn.SDecls p, Void arg)
+        {
+            ListId ids = new ListId();
+            for (String x : p.listid_)
+                ids.add(declare(x));
+            return one(new SDecls(p.type_, ids));
+        }
+        public ListStm visit(CPP.Absyn.SInit p, Void arg)
+        {
+            Exp e = p.exp_.accept(this, null);
+            return one(new SInit(p.type_, declare(p.id_), e));
+        }
+        public ListStm visit(CPP.Absyn.SReturn p, Void arg)
+        {
+            Exp e = p.exp_.accept(this, null);
+            return one(result == null ? new SReturn(e) : result.of(e));
+        }
+        public ListStm visit(CPP.Absyn.SWhile p, Void arg)
+        {
+            return one(new SWhile(p.exp_.accept(this, null), branch(p.stm_)));
+        }
+        public ListStm visit(CPP.Absyn.SBlock p, Void arg)
+        {
+            return one(new SBlock(block(p.liststm_)));
+        }
+        public ListStm visit(CPP.Absyn.SIfElse p, Void arg)
+        {
+            Exp e = p.exp_.accept(this, null);
+            return one(new SIfElse(e, branch(p.stm_1), branch(p.stm_2)));
+        }
+
+        ListStm block(ListStm ss) {
+            scopes.push(new HashMap<String, Exp>());
+            ListStm out = new ListStm();
+            for (Stm s : ss)
+                out.addAll(s.accept(this, null));
+            scopes.pop();
+            return out;
+        }
+
+        Stm branch(Stm s) {
+            scopes.push(new HashMap<String, Exp>());
+            ListStm out = s.accept(this, null);
+            scopes.pop();
+            return out.size() == 1 ? out.getFirst() : new SBlock(out);
+        }
+
+        String declare(String x) {
+            if (!rename) return x;
+            String y = x + "$" + ++fresh;
+            scopes.peek().put(x, new EId(y));
+            return y;
+        }
+
+        public Exp visit(CPP.Absyn.ETrue p, Void arg)   { return new ETrue(); }
+        public Exp visit(CPP.Absyn.EFalse p, Void arg)  { return new EFalse(); }
+        public Exp visit(CPP.Absyn.EInt p, Void arg)    { return new EInt(p.integer_); }
+        public Exp visit(CPP.Absyn.EDouble p, Void arg) { return new EDouble(p.double_); }
+
+        public Exp visit(CPP.Absyn.EId p, Void arg)
+        {
+            Exp value = lookup(p.id_);
+            return value == null ? new EId(p.id_) : value.accept(plain, null);
+        }
+        public Exp visit(CPP.Absyn.EApp p, Void arg)
+        {
+            ListExp args = new ListExp();
+            for (Exp e : p.listexp_)
+                args.add(e.accept(this, null));
+            return new EApp(p.id_, args);
+        }
+
+        public Exp visit(CPP.Absyn.EPostIncr p, Void arg) { return new EPostIncr(name(p.id_)); }
+        public Exp visit(CPP.Absyn.EPostDecr p, Void arg) { return new EPostDecr(name(p.id_)); }
+        public Exp visit(CPP.Absyn.EPreIncr p, Void arg)  { return new EPreIncr(name(p.id_)); }
+        public Exp visit(CPP.Absyn.EPreDecr p, Void arg)  { return new EPreDecr(name(p.id_)); }
+
+        public Exp visit(CPP.Absyn.ETimes p, Void arg) { return new ETimes(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EDiv p, Void arg)   { return new EDiv(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EPlus p, Void arg)  { return new EPlus(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EMinus p, Void arg) { return new EMinus(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ELt p, Void arg)    { return new ELt(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EGt p, Void arg)    { return new EGt(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ELtEq p, Void arg)  { return new ELtEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EGtEq p, Void arg)  { return new EGtEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EEq p, Void arg)    { return new EEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ENEq p, Void arg)   { return new ENEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EAnd p, Void arg)   { return new EAnd(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EOr p, Void arg)    { return new EOr(exp(p.exp_1), exp(p.exp_2)); }
+
+        public Exp visit(CPP.Absyn.EAss p, Void arg)
+        {
+            return new EAss(name(p.id_), p.exp_.accept(this, null));
+        }
+
+        private Exp exp(Exp e) {
+            return e.accept(this, null);
+        }
+
+        private Exp lookup(String x) {
+            for (Map<String, Exp> scope : scopes)
+                if (scope.containsKey(x)) return scope.get(x);
+            return null;
+        }
+
+        /* Only renamed variables are assigned. */
+        private String name(String x) {
+            Exp value = lookup(x);
+            return value == null ? x : ((EId) value).id_;
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* Whether every return in ss is the last statement run in it. */
+    private static boolean returnsLast(ListStm ss) {
+        int i = 0;
+        for (Stm s : ss)
+            if (++i < ss.size() ? hasReturn(s) : !returnsLast(s)) return false;
+        return true;
+    }
+
+    private static boolean returnsLast(Stm s) {
+        if (s instanceof SBlock) return returnsLast(((SBlock) s).liststm_);
+        if (s instanceof SIfElse)
+            return returnsLast(((SIfElse) s).stm_1) && returnsLast(((SIfElse) s).stm_2);
+        return s instanceof SReturn || !hasReturn(s);
+    }
+
+    /* Whether no path falls off the end of ss. */
+    private static boolean alwaysReturns(ListStm ss) {
+        return !ss.isEmpty() && alwaysReturns(ss.getLast());
+    }
+
+    private static boolean alwaysReturns(Stm s) {
+        if (s instanceof SReturn) return true;
+        if (s instanceof SBlock) return alwaysReturns(((SBlock) s).liststm_);
+        if (s instanceof SIfElse)
+            return alwaysReturns(((SIfElse) s).stm_1) && alwaysReturns(((SIfElse) s).stm_2);
+        return false;
+    }
+
+    private static boolean hasReturn(Stm s) {
+        final boolean[] found = { false };
+        Walker w = new Walker() {
+            void statement(Stm t) {
+                found[0] |= t instanceof SReturn;
+            }
+        };
+        s.accept(w, null);
+        return found[0];
+    }
+
+    /* Neither has an effect nor can fail: no calls, assignments or
+     * integer divisions other than by a nonzero literal. */
+    private boolean pure(Exp e) {
+        final boolean[] pure = { true };
+        new Walker() {
+            void expression(Exp e) {
+                if (e instanceof EApp) pure[0] = false;
+                if (e instanceof EDiv) {
+                    Exp d = ((EDiv) e).exp_2;
+                    if (!(checker.typeOf(d) instanceof Type_double
+                          || d instanceof EInt && ((EInt) d).integer_ != 0))
+                        pure[0] = false;
+                }
+            }
+            void assigned(String x) {
+                pure[0] = false;
+            }
+        }.walk(e);
+        return pure[0];
+    }
+
+    /* How many times e reads each variable. */
+    private static Map<String, Integer> uses(Exp e) {
+        final Map<String, Integer> n = new HashMap<String, Integer>();
+        new Walker() {
+            void expression(Exp e) {
+                if (!(e instanceof EId)) return;
+                String x = ((EId) e).id_;
+                n.put(x, n.containsKey(x) ? n.get(x) + 1 : 1);
+            }
+        }.walk(e);
+        return n;
+    }
+
+    /* The variables e assigns, increments or decrements. */
+    private static Set<String> assigned(Exp e) {
+        final Set<String> s = new HashSet<String>();
+        new Walker() {
+            void assigned(String x) {
+                s.add(x);
+            }
+        }.walk(e);
+        return s;
+    }
+
+    private static boolean mentions(EApp call, String x) {
+        for (Exp e : call.listexp_)
+            if (uses(e).containsKey(x) || assigned(e).contains(x))
+                return true;
+        return false;
+    }
+
+    /* Number of statements and expressions in ss. */
+    private static int size(ListStm ss) {
+        final int[] n = { 0 };
+        new Walker() {
+            void statement(Stm s)   { n[0]++; }
+            void expression(Exp e)  { n[0]++; }
+        }.walk(ss);
+        return n[0];
+    }
+
+    private static ListStm one(Stm s) {
+        ListStm l = new ListStm();
+        l.add(s);
+        return l;
+    }
+
+    private static boolean isLiteral(Exp e) {
+        return e instanceof EInt || e instanceof EDouble || e instanceof ETrue || e instanceof EFalse;
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
+import java.util.*;
+
+/* Buffered input channel behind readInt and readDouble.
+ *
+ * Reads whitespace separated tokens straight from the bytes of a channel
+ * and parses them without building strings, replacing java.util.Scanner.
+ * Errors are reported like Scanner does: NoSuchElementException at the
+ * end of the input, InputMismatchException for a malformed token. */
+public class Input {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /* Powers of ten that are exact doubles. */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer buffer;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /* Bytes of the current token. */
+    private byte[] token = new byte[64];
+    private int length;
+
+    public Input(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    public Input(ReadableByteChannel in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Input(ReadableByteChannel in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+        this.buffer = ByteBuffer.wrap(buf);
+    }
+
+    public int readInt() {
+        nextToken();
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
+        }
+        if (i == length) throw new InputMismatchException();
+
+        /* Accumulate negatively, so Integer.MIN_VALUE does not overflow. */
+        int v = 0;
+        for (; i < length; i++) {
+            int d = token[i] - '0';
+            if (d < 0 || d > 9) throw new InputMismatchException();
+            if (v < (Integer.MIN_VALUE + d) / 10) throw new InputMismatchException();
+            v = v * 10 - d;
+        }
+        if (!negative) {
+            if (v == Integer.MIN_VALUE) throw new InputMismatchException();
+            v = -v;
+        }
+        return v;
+    }
+
+    /* Decimal numbers with up to 15 significant digits and a small
+     * exponent are computed exactly from the digits; the rest, and NaN
+     * and Infinity, are handed to Double.parseDouble. */
+    public double readDouble() {
+        nextToken();
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean seen = false;
+        for (; i < length; i++) {
+            byte b = token[i];
+            if (b >= '0' && b <= '9') {
+                seen = true;
+                if (digits > 0 || b != '0') {
+                    /* Past 15 digits only the count matters, the fast path is off. */
+                    if (digits < 15) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if (point) scale--;
+                    }
+                    digits++;
+                } else if (point) {
+                    scale--;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (!seen) return parseSpecial();
+
+        if (i < length) {
+            if (token[i] != 'e' && token[i] != 'E') throw new InputMismatchException();
+            i++;
+            boolean negExp = false;
+            if (i < length && (token[i] == '-' || token[i] == '+')) {
+                negExp = token[i] == '-';
+                i++;
+            }
+            if (i == length) throw new InputMismatchException();
+            int exp = 0;
+            for (; i < length; i++) {
+                int d = token[i] - '0';
+                if (d < 0 || d > 9) throw new InputMismatchException();
+                if (exp < 100000) exp = exp * 10 + d;
+            }
+            scale += negExp ? -exp : exp;
+        }
+
+        if (digits > 15 || scale < -22 || scale > 22)
+            return Double.parseDouble(tokenString());
+        double v = scale < 0 ? mantissa / POW10[-scale] : mantissa * POW10[scale];
+        return negative ? -v : v;
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private double parseSpecial() {
+        switch (tokenString()) {
+            case "NaN":
+            case "+NaN":
+            case "-NaN":       return Double.NaN;
+            case "Infinity":
+            case "+Infinity":  return Double.POSITIVE_INFINITY;
+            case "-Infinity":  return Double.NEGATIVE_INFINITY;
+        }
+        throw new InputMismatchException();
+    }
+
+    private String tokenString() {
+        return new String(token, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /* Reads the next whitespace separated token into token[0..length). */
+    private void nextToken() {
+        while (true) {
+            if (pos == limit && !fill()) throw new NoSuchElementException();
+            if (!isSpace(buf[pos])) break;
+            pos++;
+        }
+        length = 0;
+        while (true) {
+            if (pos == limit && !fill()) return;
+            byte b = buf[pos];
+            if (isSpace(b)) return;
+            if (length == token.length) token = Arrays.copyOf(token, 2 * length);
+            token[length++] = b;
+            pos++;
+        }
+    }
+
+    private boolean fill() {
+        if (eof) return false;
+        try {
+            buffer.clear();
+            int n;
+            do {
+                n = in.read(buffer);
+            } while (n == 0);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            pos = 0;
+            limit = n;
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Input error: " + e.getMessage());
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1c && b <= 0x1f);
+    }
+}
@@ -1,17 +1,72 @@
 import CPP.Absyn.*;
+import java.io.*;
 import java.util.*;
 
 public class Interpreter {
 
     private RuntimeEnv env = new RuntimeEnv();
 
-    private StmVisitor stmVisitor = new StmVisitor();
-    private ExpVisitor expVisitor = new ExpVisitor();
+    private Resolver resolver = new Resolver();
 
-    private Scanner s = new Scanner(System.in);
+    private TailCalls tailCalls = new TailCalls();
+
+    /* Completion of a self tail call, whose arguments are already bound. */
+    private static final Value TAIL_CALL = new VVoid();
+
+    /* Not final: the ProfilingInterpreter installs its own statement visitor. */
+    protected StmVisitor stmVisitor = new StmVisitor();
+    protected ExpVisitor expVisitor = new ExpVisitor();
+
+    private final Input in;
+    private final Output out;
+
+    private final boolean memoize;
+
+    /* Where reports on the run go. */
+    protected final PrintStream err;
+
+    /* Memo tables of the pure functions, or null without memoization. */
+    private Map<String, MemoTable> memo;
+
+    public Interpreter() {
+        this(new Input(System.in), new Output(System.out));
+    }
+
+    public Interpreter(Input in, Output out) {
+        this(in, out, false);
+    }
+
+    public Interpreter(Input in, Output out, boolean memoize) {
+        this(in, out, memoize, System.err);
+    }
+
+    public Interpreter(Input in, Output out, boolean memoize, PrintStream err) {
+        this.in = in;
+        this.out = out;
+        this.memoize = memoize;
+        this.err = err;
+    }
 
     public void interpret(Program p) {
-        p.accept(new ProgramVisitor(), env);
+        resolver.resolve(p);
+        for (Def d : ((PDefs) p).listdef_) {
+            Resolver.FunLayout layout = resolver.layout(((DFun) d).id_);
+            tailCalls.analyse(layout.fun, layout.body);
+        }
+        resolved(p, resolver);
+        if (memoize)
+            memo = MemoTable.forPureFunctions(resolver, p, MemoTable.DEFAULT_CAPACITY);
+        try {
+            p.accept(new ProgramVisitor(), env);
+        } finally {
+            out.flush();
+            if (memo != null) MemoTable.report(memo.values(), err);
+        }
+    }
+
+    /* Called once the program is resolved, before it runs. The visitors
+     * execute the resolved bodies of the FunLayouts. */
+    protected void resolved(Program p, Resolver resolver) {
     }
 
     ////////////////////////////// Programs //////////////////////////////
@@ -29,14 +84,9 @@ public class Interpreter {
             DFun main = env.lookupFun("main");
             if (main == null) throw new RuntimeException("Impossible: main function missing");
 
-            /* Create new scope for main() function. */
-            env.newContext();
-
-            /* Execute the main() function body. */
-            try {
-                for (Stm s: main.liststm_)
-                    s.accept(stmVisitor, env);
-            } catch (ReturnException e) {}
+            /* Execute the main() function body in a new frame. */
+            Resolver.FunLayout layout = resolver.layout("main");
+            call(layout, new Value[layout.frameSize]);
 
             return null;
         }
@@ -44,66 +94,74 @@ public class Interpreter {
 
     ////////////////////////////// Statements //////////////////////////////
 
-    public class StmVisitor implements Stm.Visitor<Void, RuntimeEnv>
+    /* Executing a statement returns null when it completes normally, and
+     * the returned value when it executed a return statement. */
+    public class StmVisitor implements Stm.Visitor<Value, RuntimeEnv>
     {
-        public Void visit(CPP.Absyn.SExp p, RuntimeEnv env) {
+        public Value visit(CPP.Absyn.SExp p, RuntimeEnv env) {
             Value v = p.exp_.accept(expVisitor, env);
             return null;
         }
-        public Void visit(CPP.Absyn.SDecls p, RuntimeEnv env) {
-            for (String id: p.listid_) {
-                env.newVar(id, new VVoid());
+        public Value visit(CPP.Absyn.SDecls p, RuntimeEnv env) {
+            /* Declared variables start out as zero, as in the other engines. */
+            Value zero = zero(p.type_);
+            for (int slot: ((Resolver.Decls) p).slots) {
+                env.newVar(slot, zero);
             }
             return null;
         }
-        public Void visit(CPP.Absyn.SInit p, RuntimeEnv env)
+        public Value visit(CPP.Absyn.SInit p, RuntimeEnv env)
         {
             Value v = p.exp_.accept(expVisitor, env);
-            env.newVar(p.id_, v);
+            env.newVar(((Resolver.Init) p).slot, v);
             return null;
         }
-        public Void visit(CPP.Absyn.SReturn p, RuntimeEnv env)
+        public Value visit(CPP.Absyn.SReturn p, RuntimeEnv env)
         {
-            Value v = p.exp_.accept(expVisitor, env);
-            throw new ReturnException(v);
+            if (tailCalls.isSelfTailCall(p)) {
+                Resolver.App call = (Resolver.App) p.exp_;
+                int[] params = call.site.callee.paramSlots;
+
+                /* Evaluate all arguments before overwriting any parameter. */
+                Value[] args = new Value[params.length];
+                int i = 0;
+                for (Exp e : call.listexp_)
+                    args[i++] = e.accept(expVisitor, env);
+                for (i = 0; i < params.length; i++)
+                    env.assignVar(params[i], args[i]);
+                return TAIL_CALL;
+            }
+            return p.exp_.accept(expVisitor, env);
         }
-        public Void visit(CPP.Absyn.SWhile p, RuntimeEnv env)
+        public Value visit(CPP.Absyn.SWhile p, RuntimeEnv env)
         {
             while (true) {
                 VBool condition = (VBool) p.exp_.accept(expVisitor, env);
 
                 // If condition is true
                 if (condition.value) {
-                    env.newContext();
-                    p.stm_.accept(stmVisitor, env);
-                    env.delContext();
+                    Value v = p.stm_.accept(stmVisitor, env);
+                    if (v != null) return v;
                 }
                 else
                     return null;
             }
         }
-        public Void visit(CPP.Absyn.SBlock p, RuntimeEnv env)
+        public Value visit(CPP.Absyn.SBlock p, RuntimeEnv env)
         {
-            env.newContext();
             for (Stm x: p.liststm_) {
-                x.accept(stmVisitor, env);
+                Value v = x.accept(stmVisitor, env);
+                if (v != null) return v;
             }
-            env.delContext();
             return null;
         }
-        public Void visit(CPP.Absyn.SIfElse p, RuntimeEnv env)
+        public Value visit(CPP.Absyn.SIfElse p, RuntimeEnv env)
         {
             VBool condition = (VBool) p.exp_.accept(expVisitor, env);
-            if (condition.value) {
-                env.newContext();
-                p.stm_1.accept(stmVisitor, env);
-                env.delContext();
-            } else {
-                env.newContext();
-                p.stm_2.accept(stmVisitor, env);
-                env.delContext();
-            }
-            return null;
+            if (condition.value)
+                return p.stm_1.accept(stmVisitor, env);
+            else
+                return p.stm_2.accept(stmVisitor, env);
         }
     }
 
@@ -113,117 +171,110 @@ public class Interpreter {
     {
         public Value visit(CPP.Absyn.ETrue p, RuntimeEnv env)
         {
-            return new VBool(true);
+            return VBool.TRUE;
         }
         public Value visit(CPP.Absyn.EFalse p, RuntimeEnv env)
         {
-            return new VBool(false);
+            return VBool.FALSE;
         }
         public Value visit(CPP.Absyn.EInt p, RuntimeEnv env)
         {
-            return new VInt(p.integer_);
+            return ((Resolver.IntLit) p).value;
         }
         public Value visit(CPP.Absyn.EDouble p, RuntimeEnv env)
         {
-            return new VDouble(p.double_);
+            return ((Resolver.DoubleLit) p).value;
         }
         public Value visit(CPP.Absyn.EId p, RuntimeEnv env)
         {
-            return env.lookupVar(p.id_);
+            return env.lookupVar(((Resolver.Var) p).slot);
         }
         public Value visit(CPP.Absyn.EApp p, RuntimeEnv env)
         {
-            if (p.id_.equals("printInt")) {
-                VInt v = (VInt) p.listexp_.get(0).accept(expVisitor, env);
-                System.out.println(v.value);
-                return new VVoid();
-            } else if (p.id_.equals("printDouble")) {
-                VDouble v = (VDouble) p.listexp_.get(0).accept(expVisitor, env);
-                System.out.println(v.value);
-                return new VVoid();
-            } else if (p.id_.equals("readInt")) {
-                return new VInt(s.nextInt());
-            } else if (p.id_.equals("readDouble")) {
-                return new VDouble(s.nextDouble());
-            } else {
-                /* User defined function. */
-                DFun fun = env.lookupFun(p.id_);
-
-                /* Bind formal parameters in a new scope. */
-                HashMap<String, Value> c = new HashMap<String, Value>();
-                int i = 0;
-                for (Exp e : p.listexp_) {
-                    Value v = e.accept(expVisitor, env);
-                    String id = ((ADecl) fun.listarg_.get(i)).id_;
-                    c.put(id, v);
-                    i++;
+            Resolver.CallSite site = ((Resolver.App) p).site;
+            if (site.builtin != null) {
+                switch (site.builtin) {
+                    case PrintInt: {
+                        VInt v = (VInt) p.listexp_.getFirst().accept(expVisitor, env);
+                        out.printInt(v.value);
+                        return new VVoid();
+                    }
+                    case PrintDouble: {
+                        VDouble v = (VDouble) p.listexp_.getFirst().accept(expVisitor, env);
+                        out.printDouble(v.value);
+                        return new VVoid();
+                    }
+                    case ReadInt:
+                        return new VInt(in.readInt());
+                    case ReadDouble:
+                        return new VDouble(in.readDouble());
                 }
+            }
 
-                /* Remember where to return after function execution completed. */
-                env.setFunctionCallReturnStub();
-
-                /* Push the newly created scope to the stack. */
-                env.newContext(c);
+            /* User defined function, linked by the Resolver. */
+            Resolver.FunLayout callee = site.callee;
 
-                /* Execute function body. */
-                try {
-                    for (Stm stm : fun.liststm_)
-                        stm.accept(stmVisitor, env);
-                } catch (ReturnException e) {
-                    return e.returnValue;
-                } finally {
-                    env.resumeCtxAfterFunctionCall();
-                }
+            /* Bind formal parameters in a new frame. */
+            Value[] frame = new Value[callee.frameSize];
+            int i = 0;
+            for (Exp e : p.listexp_) {
+                frame[callee.paramSlots[i]] = e.accept(expVisitor, env);
+                i++;
             }
-            return new VVoid();
+
+            return call(callee, frame);
         }
         public Value visit(CPP.Absyn.EPostIncr p, RuntimeEnv env)
         {
-            Value v  = env.lookupVar(p.id_);
+            int slot = ((Resolver.PostIncr) p).slot;
+            Value v  = env.lookupVar(slot);
             if (v instanceof VInt) {
                 VInt v1 = new VInt(((VInt)v).value + 1);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             } else if (v instanceof VDouble) {
                 VDouble v1 = new VDouble(((VDouble)v).value + 1.0);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             }
             return v;
         }
         public Value visit(CPP.Absyn.EPostDecr p, RuntimeEnv env)
         {
-            Value v  = env.lookupVar(p.id_);
+            int slot = ((Resolver.PostDecr) p).slot;
+            Value v  = env.lookupVar(slot);
             if (v instanceof VInt) {
                 VInt v1 = new VInt(((VInt)v).value - 1);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             } else if (v instanceof VDouble) {
                 VDouble v1 = new VDouble(((VDouble)v).value - 1.0);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             }
             return v;
         }
         public Value visit(CPP.Absyn.EPreIncr p, RuntimeEnv env)
         {
-            Value v  = env.lookupVar(p.id_);
+            int slot = ((Resolver.PreIncr) p).slot;
+            Value v  = env.lookupVar(slot);
             Value v1 = null;
             if (v instanceof VInt) {
                 v1 = new VInt(((VInt)v).value + 1);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             } else if (v instanceof VDouble) {
                 v1 = new VDouble(((VDouble)v).value + 1.0);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             }
             return v1;
         }
         public Value visit(CPP.Absyn.EPreDecr p, RuntimeEnv env)
         {
-            Value v  = env.lookupVar(p.id_);
+            int slot = ((Resolver.PreDecr) p).slot;
+            Value v  = env.lookupVar(slot);
             Value v1 = null;
             if (v instanceof VInt) {
                 v1 = new VInt(((VInt)v).value - 1);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             } else if (v instanceof VDouble) {
                 v1 = new VDouble(((VDouble)v).value - 1.0);
-                env.assignVar(p.id_, v1);
+                env.assignVar(slot, v1);
             }
             return v1;
         }
@@ -288,10 +339,10 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool( ((VInt) v1).value < ((VInt) v2).value);
+                VBool result = VBool.of( ((VInt) v1).value < ((VInt) v2).value);
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool( ((VDouble) v1).value < ((VDouble) v2).value);
+                VBool result = VBool.of( ((VDouble) v1).value < ((VDouble) v2).value);
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -302,10 +353,10 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool( ((VInt) v1).value > ((VInt) v2).value);
+                VBool result = VBool.of( ((VInt) v1).value > ((VInt) v2).value);
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool( ((VDouble) v1).value > ((VDouble) v2).value);
+                VBool result = VBool.of( ((VDouble) v1).value > ((VDouble) v2).value);
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -316,10 +367,10 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool( ((VInt) v1).value <= ((VInt) v2).value);
+                VBool result = VBool.of( ((VInt) v1).value <= ((VInt) v2).value);
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool( ((VDouble) v1).value <= ((VDouble) v2).value);
+                VBool result = VBool.of( ((VDouble) v1).value <= ((VDouble) v2).value);
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -330,10 +381,10 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool( ((VInt) v1).value >= ((VInt) v2).value);
+                VBool result = VBool.of( ((VInt) v1).value >= ((VInt) v2).value);
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool( ((VDouble) v1).value >= ((VDouble) v2).value);
+                VBool result = VBool.of( ((VDouble) v1).value >= ((VDouble) v2).value);
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -344,13 +395,13 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool(v1.equals(v2));
+                VBool result = VBool.of(v1.equals(v2));
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool(v1.equals(v2));
+                VBool result = VBool.of(v1.equals(v2));
                 return result;
             } else if (v1 instanceof VBool) {
-                VBool result = new VBool(v1.equals(v2));
+                VBool result = VBool.of(v1.equals(v2));
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -361,13 +412,13 @@ public class Interpreter {
             Value v1 = p.exp_1.accept(expVisitor, env);
             Value v2 = p.exp_2.accept(expVisitor, env);
             if (v1 instanceof VInt) {
-                VBool result = new VBool(!v1.equals(v2));
+                VBool result = VBool.of(!v1.equals(v2));
                 return result;
             } else if (v1 instanceof VDouble) {
-                VBool result = new VBool(!v1.equals(v2));
+                VBool result = VBool.of(!v1.equals(v2));
                 return result;
             } else if (v1 instanceof VBool) {
-                VBool result = new VBool(!v1.equals(v2));
+                VBool result = VBool.of(!v1.equals(v2));
                 return result;
             } else {
                 throw new RuntimeException("Illegal type for comparison.");
@@ -377,27 +428,95 @@ public class Interpreter {
         {
             VBool v1 = (VBool) p.exp_1.accept(expVisitor, env);
             if (v1.value == false)
-                return new VBool(false);
+                return VBool.FALSE;
             VBool v2 = (VBool) p.exp_2.accept(expVisitor, env);
             if (v2.value == true)
-                return new VBool(true);
-            return new VBool(false);
+                return VBool.TRUE;
+            return VBool.FALSE;
         }
         public Value visit(CPP.Absyn.EOr p, RuntimeEnv env)
         {
             VBool v1 = (VBool) p.exp_1.accept(expVisitor, env);
             if (v1.value == true)
-                return new VBool(true);
+                return VBool.TRUE;
             VBool v2 = (VBool) p.exp_2.accept(expVisitor, env);
             if (v2.value == true)
-                return new VBool(true);
-            return new VBool(false);
+                return VBool.TRUE;
+            return VBool.FALSE;
         }
         public Value visit(CPP.Absyn.EAss p, RuntimeEnv env)
         {
             Value v = p.exp_.accept(expVisitor, env);
-            env.assignVar(p.id_, v);
+            env.assignVar(((Resolver.Assign) p).slot, v);
             return v;
         }
     }
+
+    /* Calls a user defined function whose parameters are bound in frame. */
+    protected Value call(Resolver.FunLayout callee, Value[] frame) {
+        /* Pure functions answer repeated arguments from their memo table. */
+        MemoTable table = memo != null ? memo.get(callee.fun.id_) : null;
+        long[] key = table != null ? memoKey(frame, callee.paramSlots) : null;
+        if (key != null) {
+            Long hit = table.get(key);
+            if (hit != null) return fromBits(hit, callee.fun.type_);
+        }
+
+        /* Switch to the new frame, remembering the caller's one. */
+        Value[] caller = env.enterFrame(frame);
+
+        Value v = execBody(callee.body);
+        env.leaveFrame(caller);
+        if (key != null && isScalar(v)) table.put(key, toBits(v));
+        return v != null ? v : new VVoid();
+    }
+
+    ////////////////////////////// Memoization //////////////////////////////
+
+    /* Raw bits of the arguments. */
+    private static long[] memoKey(Value[] frame, int[] paramSlots) {
+        long[] key = new long[paramSlots.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = toBits(frame[paramSlots[i]]);
+        return key;
+    }
+
+    private static boolean isScalar(Value v) {
+        return v instanceof VInt || v instanceof VDouble || v instanceof VBool;
+    }
+
+    private static long toBits(Value v) {
+        if (v instanceof VInt) return ((VInt) v).value;
+        if (v instanceof VDouble) return Double.doubleToRawLongBits(((VDouble) v).value);
+        return ((VBool) v).value ? 1 : 0;
+    }
+
+    private static Value fromBits(long bits, Type t) {
+        if (t instanceof Type_int) return new VInt((int) bits);
+        if (t instanceof Type_double) return new VDouble(Double.longBitsToDouble(bits));
+        return VBool.of(bits != 0);
+    }
+
+    /* Executes a function body in the current frame until it returns,
+     * restarting it for every self tail call. */
+    private Value execBody(ListStm body) {
+        while (true) {
+            Value v = null;
+            for (Stm stm : body) {
+                v = stm.accept(stmVisitor, env);
+                if (v != null) break;
+            }
+            if (v != TAIL_CALL) return v;
+        }
+    }
+
+    private static final VInt INT_ZERO = new VInt(0);
+    private static final VDouble DOUBLE_ZERO = new VDouble(0.0);
+
+    /* Value of a declared variable before its first assignment. */
+    private static Value zero(Type t) {
+        if (t instanceof Type_int) return INT_ZERO;
+        if (t instanceof Type_double) return DOUBLE_ZERO;
+        return VBool.FALSE;
+    }
 }
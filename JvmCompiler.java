@@ -0,0 +1,54 @@
+import CPP.Absyn.*;
+import java.lang.invoke.*;
+
+/* Compiles a type checked program to a JVM class in memory and runs it
+ * in this JVM, where the JIT compiles it further. */
+public class JvmCompiler {
+
+    private final TypeChecker checker;
+    private final Input in;
+    private final Output out;
+
+    public JvmCompiler(TypeChecker checker) {
+        this(checker, new Input(System.in), new Output(System.out));
+    }
+
+    public JvmCompiler(TypeChecker checker, Input in, Output out) {
+        this.checker = checker;
+        this.in = in;
+        this.out = out;
+    }
+
+    /* The class file of the program, as class name. */
+    public byte[] assemble(String name, Program p) {
+        return ClassAssembler.assemble(name, new Compiler(checker).methods(name, p));
+    }
+
+    /* Defines the class of the program in a fresh class loader and binds
+     * its builtins to this compiler's input and output. */
+    public Class<?> load(String name, Program p) {
+        Class<?> c = new ClassAssembler.Loader().define(name, assemble(name, p));
+        try {
+            c.getField("in").set(null, in);
+            c.getField("out").set(null, out);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+        return c;
+    }
+
+    public void run(String name, Program p) {
+        Class<?> c = load(name, p);
+        try {
+            MethodHandles.publicLookup()
+                .findStatic(c, "main", MethodType.methodType(int.class))
+                .invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        } finally {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.util.*;
+
+/* Bounded memo table of a pure function. Maps the raw bits of the
+ * arguments (ints and bools as is, doubles through
+ * Double.doubleToRawLongBits) to the raw bits of the result, evicting the
+ * least recently used entry when full. */
+public class MemoTable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /* Argument tuple, compared by value. */
+    private static final class Key {
+        final long[] args;
+        final int hash;
+
+        Key(long[] args) {
+            this.args = args;
+            this.hash = Arrays.hashCode(args);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(args, ((Key) o).args);
+        }
+    }
+
+    public final String fun;
+    private final LinkedHashMap<Key, Long> entries;
+    private long hits;
+    private long misses;
+
+    public MemoTable(String fun, final int capacity) {
+        this.fun = fun;
+        this.entries = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /* The result for these arguments, or null if it is not known. */
+    public Long get(long[] args) {
+        Long v = entries.get(new Key(args));
+        if (v != null) hits++;
+        else misses++;
+        return v;
+    }
+
+    public void put(long[] args, long result) {
+        entries.put(new Key(args), result);
+    }
+
+    /* Memo tables of all pure functions of the program that return a value. */
+    public static Map<String, MemoTable> forPureFunctions(Resolver resolver, Program p, int capacity) {
+        Purity purity = new Purity();
+        purity.analyse(resolver, p);
+
+        Map<String, MemoTable> tables = new LinkedHashMap<String, MemoTable>();
+        for (Def d : ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            if (purity.isPure(f.id_) && !(f.type_ instanceof Type_void))
+                tables.put(f.id_, new MemoTable(f.id_, capacity));
+        }
+        return tables;
+    }
+
+    /* Writes the hit and miss counts of each table. */
+    public static void report(Collection<MemoTable> tables, PrintStream s) {
+        for (MemoTable t : tables)
+            s.println("memo " + t.fun + ": " + t.hits + " hits, " + t.misses
+                      + " misses, " + t.entries.size() + " entries");
+    }
+}
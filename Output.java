@@ -0,0 +1,116 @@
+import java.io.*;
+
+/* Buffered output channel behind printInt and printDouble.
+ *
+ * Values are formatted straight into a reusable byte buffer, which is
+ * written out when it fills up, on flush(), and when the engine finishes
+ * or fails. With autoFlush every value is written out at once, like the
+ * println the engines used before. */
+public class Output {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /* Room for the longest value written digit by digit, and a newline. */
+    private static final int MAX_VALUE_BYTES = 32;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final OutputStream out;
+    private final boolean autoFlush;
+    private final byte[] buf;
+    private int pos;
+
+    public Output(OutputStream out) {
+        this(out, false, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Output(OutputStream out, boolean autoFlush) {
+        this(out, autoFlush, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Output(OutputStream out, boolean autoFlush, int bufferSize) {
+        this.out = out;
+        this.autoFlush = autoFlush;
+        this.buf = new byte[Math.max(bufferSize, MAX_VALUE_BYTES)];
+    }
+
+    public void printInt(int v) {
+        reserve();
+        putLong(v);
+        endLine();
+    }
+
+    /* Formats like Double.toString. Integral values below 10^7, the common
+     * case, are written digit by digit; everything else (fractions,
+     * exponents, NaN, -0.0) goes through Double.toString. */
+    public void printDouble(double v) {
+        reserve();
+        if (v == (long) v && Math.abs(v) < 1e7 && (v != 0 || 1 / v > 0)) {
+            putLong((long) v);
+            buf[pos++] = '.';
+            buf[pos++] = '0';
+        } else {
+            String s = Double.toString(v);
+            int n = s.length();
+            for (int i = 0; i < n; i++)
+                buf[pos++] = (byte) s.charAt(i);
+        }
+        endLine();
+    }
+
+    /* Writes out all buffered values. */
+    public void flush() {
+        flushBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Output error: " + e.getMessage());
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private void reserve() {
+        if (buf.length - pos < MAX_VALUE_BYTES) flushBuffer();
+    }
+
+    private void endLine() {
+        for (byte b : NEWLINE)
+            buf[pos++] = b;
+        if (autoFlush) flush();
+    }
+
+    /* Writes the decimal digits of v, an int or a double below 10^7. */
+    private void putLong(long v) {
+        if (v < 0) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        int end = pos + digits(v);
+        int i = end;
+        do {
+            buf[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        pos = end;
+    }
+
+    private static int digits(long v) {
+        int n = 1;
+        while (v >= 10) {
+            v /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    private void flushBuffer() {
+        if (pos == 0) return;
+        try {
+            out.write(buf, 0, pos);
+        } catch (IOException e) {
+            throw new RuntimeException("Output error: " + e.getMessage());
+        }
+        pos = 0;
+    }
+}
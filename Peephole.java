@@ -0,0 +1,332 @@
+import java.util.*;
+import CPP.Absyn.*;
+
+/* Peephole optimizer for the instructions of one compiled function.
+ *
+ * Window rules rewrite short instruction sequences into shorter ones,
+ * e.g. a stored value that is loaded again only to be popped, or a load,
+ * add and store of a constant that iinc does in one. Matching skips
+ * comments, which stay in place, and never crosses a label. Between
+ * rounds of the rules, jumps to jumps are threaded, and unreachable
+ * code, jumps to the next instruction, unused labels and nops are
+ * removed. Rounds repeat until nothing changes. */
+public class Peephole {
+
+    /* A rewrite of a window of length instructions, comments not counted. */
+    abstract static class Rule {
+        final int length;
+
+        Rule(int length) {
+            this.length = length;
+        }
+
+        /* The replacement of w, or null if the rule does not apply. */
+        abstract List<Code> rewrite(List<Code> w);
+    }
+
+    static final List<Rule> RULES = Arrays.asList(
+
+        /* x = e;  Store, Load, Pop  =>  Store */
+        new Rule(3) {
+            List<Code> rewrite(List<Code> w) {
+                if (w.get(0) instanceof Store && isLoad(w.get(1), ((Store) w.get(0)).addr)
+                    && w.get(2) instanceof Pop)
+                    return seq(w.get(0));
+                return null;
+            }
+        },
+
+        /* ++x;  Dup, Store, Pop  =>  Store */
+        new Rule(3) {
+            List<Code> rewrite(List<Code> w) {
+                if (w.get(0) instanceof Dup && w.get(1) instanceof Store && w.get(2) instanceof Pop)
+                    return seq(w.get(1));
+                return null;
+            }
+        },
+
+        /* x++;  Dup, Const, Add, Store, Pop  =>  Const, Add, Store */
+        new Rule(5) {
+            List<Code> rewrite(List<Code> w) {
+                if (w.get(0) instanceof Dup && isConst(w.get(1)) && w.get(2) instanceof Add
+                    && w.get(3) instanceof Store && w.get(4) instanceof Pop)
+                    return seq(w.get(1), w.get(2), w.get(3));
+                return null;
+            }
+        },
+
+        /* A value pushed only to be popped. */
+        new Rule(2) {
+            List<Code> rewrite(List<Code> w) {
+                Code c = w.get(0);
+                if ((c instanceof Load || isConst(c) || c instanceof Dup) && w.get(1) instanceof Pop)
+                    return seq();
+                return null;
+            }
+        },
+
+        /* x++;  after the rule below: Load, Inc, Pop  =>  Inc */
+        new Rule(3) {
+            List<Code> rewrite(List<Code> w) {
+                Code c = w.get(0);
+                if ((c instanceof Load || isConst(c) || c instanceof Dup) && w.get(1) instanceof Inc
+                    && w.get(2) instanceof Pop)
+                    return seq(w.get(1));
+                return null;
+            }
+        },
+
+        /* x = x + k;  Load, IConst, Add, Store  =>  Inc */
+        new Rule(4) {
+            List<Code> rewrite(List<Code> w) {
+                Integer addr = intLoad(w.get(0));
+                Integer k = delta(w.get(1), w.get(2));
+                if (addr != null && k != null && isStore(w.get(3), addr))
+                    return seq(new Inc(addr, k));
+                return null;
+            }
+        },
+
+        /* y = x++;  Load, Dup, IConst, Add, Store  =>  Load, Inc */
+        new Rule(5) {
+            List<Code> rewrite(List<Code> w) {
+                Integer addr = intLoad(w.get(0));
+                Integer k = delta(w.get(2), w.get(3));
+                if (addr != null && w.get(1) instanceof Dup && k != null && isStore(w.get(4), addr))
+                    return seq(w.get(0), new Inc(addr, k));
+                return null;
+            }
+        },
+
+        /* y = ++x;  Load, IConst, Add, Dup, Store  =>  Inc, Load */
+        new Rule(5) {
+            List<Code> rewrite(List<Code> w) {
+                Integer addr = intLoad(w.get(0));
+                Integer k = delta(w.get(1), w.get(2));
+                if (addr != null && k != null && w.get(3) instanceof Dup && isStore(w.get(4), addr))
+                    return seq(new Inc(addr, k), w.get(0));
+                return null;
+            }
+        },
+
+        /* Tests of a constant, e.g. while (true). */
+        new Rule(2) {
+            List<Code> rewrite(List<Code> w) {
+                if (!(w.get(0) instanceof IConst)) return null;
+                boolean zero = ((IConst) w.get(0)).immed == 0;
+                if (w.get(1) instanceof IfZ)
+                    return zero ? seq(new Goto(((IfZ) w.get(1)).label)) : seq();
+                if (w.get(1) instanceof IfNZ)
+                    return zero ? seq() : seq(new Goto(((IfNZ) w.get(1)).label));
+                return null;
+            }
+        }
+    );
+
+    public static List<Code> optimize(List<Code> instructions) {
+        List<Code> code = new ArrayList<Code>(instructions);
+        boolean changed = true;
+        while (changed) {
+            changed = rules(code);
+            changed |= threadJumps(code);
+            changed |= removeUnreachable(code);
+            changed |= removeUseless(code);
+        }
+        return code;
+    }
+
+    ///////////////////////////////// Passes //////////////////////////////
+
+    /* Applies the first matching rule at each instruction. */
+    private static boolean rules(List<Code> code) {
+        boolean changed = false;
+        List<Code> out = new ArrayList<Code>(code.size());
+        int i = 0;
+        next:
+        while (i < code.size()) {
+            if (!(code.get(i) instanceof Comment)) {
+                for (Rule r : RULES) {
+                    List<Code> w = new ArrayList<Code>(r.length);
+                    int end = i;
+                    for (; end < code.size() && w.size() < r.length; end++)
+                        if (!(code.get(end) instanceof Comment)) w.add(code.get(end));
+                    if (w.size() < r.length) continue;
+
+                    List<Code> replacement = r.rewrite(w);
+                    if (replacement == null) continue;
+                    for (int k = i; k < end; k++)
+                        if (code.get(k) instanceof Comment) out.add(code.get(k));
+                    out.addAll(replacement);
+                    i = end;
+                    changed = true;
+                    continue next;
+                }
+            }
+            out.add(code.get(i++));
+        }
+        code.clear();
+        code.addAll(out);
+        return changed;
+    }
+
+    /* Jumps to a goto go to its target instead, and gotos to a return
+     * return right away. */
+    private static boolean threadJumps(List<Code> code) {
+        Map<Label, Code> at = new IdentityHashMap<Label, Code>();
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i) instanceof Target)
+                at.put(((Target) code.get(i)).label, following(code, i));
+
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Code c = code.get(i);
+            Label l = label(c);
+            if (l == null) continue;
+
+            Label to = l;
+            Set<Label> seen = Collections.newSetFromMap(new IdentityHashMap<Label, Boolean>());
+            seen.add(l);
+            boolean loop = false;
+            while (!loop && at.get(to) instanceof Goto) {
+                to = ((Goto) at.get(to)).label;
+                loop = !seen.add(to);
+            }
+            if (loop) continue;  // e.g. while (true) {}
+
+            if (c instanceof Goto && at.get(to) instanceof Return) {
+                code.set(i, new Return(((Return) at.get(to)).type));
+                changed = true;
+            } else if (to != l) {
+                code.set(i, retarget(c, to));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /* Drops the instructions after a goto or return up to the next label. */
+    private static boolean removeUnreachable(List<Code> code) {
+        boolean changed = false;
+        boolean reachable = true;
+        Iterator<Code> it = code.iterator();
+        while (it.hasNext()) {
+            Code c = it.next();
+            if (c instanceof Target) {
+                reachable = true;
+            } else if (!reachable && !(c instanceof Comment)) {
+                it.remove();
+                changed = true;
+            } else if (c instanceof Goto || c instanceof Return) {
+                reachable = false;
+            }
+        }
+        return changed;
+    }
+
+    /* Removes labels nothing jumps to, gotos to the next instruction and
+     * nops, except a nop ending the function, which keeps a label before
+     * it from dangling in the assembler. */
+    private static boolean removeUseless(List<Code> code) {
+        Set<Label> used = Collections.newSetFromMap(new IdentityHashMap<Label, Boolean>());
+        for (Code c : code)
+            if (label(c) != null) used.add(label(c));
+
+        boolean changed = false;
+        List<Code> out = new ArrayList<Code>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            Code c = code.get(i);
+            boolean useless =
+                c instanceof Target && !used.contains(((Target) c).label)
+                || c instanceof Goto && jumpsToNext(code, i)
+                || c instanceof Nop && following(code, i) != null;
+            if (useless) changed = true;
+            else out.add(c);
+        }
+        code.clear();
+        code.addAll(out);
+        return changed;
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* The first instruction after position i that is not a comment,
+     * label or nop, or null at the end of the function. */
+    private static Code following(List<Code> code, int i) {
+        for (int k = i + 1; k < code.size(); k++) {
+            Code c = code.get(k);
+            if (!(c instanceof Comment || c instanceof Target || c instanceof Nop)) return c;
+        }
+        return null;
+    }
+
+    /* Whether the goto at i only skips comments and labels, one of them its own. */
+    private static boolean jumpsToNext(List<Code> code, int i) {
+        Label l = ((Goto) code.get(i)).label;
+        for (int k = i + 1; k < code.size(); k++) {
+            Code c = code.get(k);
+            if (c instanceof Target && ((Target) c).label == l) return true;
+            if (!(c instanceof Comment || c instanceof Target)) return false;
+        }
+        return false;
+    }
+
+    /* Label of a jump, null for any other instruction. */
+    static Label label(Code c) {
+        if (c instanceof Goto)  return ((Goto) c).label;
+        if (c instanceof IfZ)   return ((IfZ) c).label;
+        if (c instanceof IfNZ)  return ((IfNZ) c).label;
+        if (c instanceof IfLt)  return ((IfLt) c).label;
+        if (c instanceof IfGt)  return ((IfGt) c).label;
+        if (c instanceof IfLe)  return ((IfLe) c).label;
+        if (c instanceof IfGe)  return ((IfGe) c).label;
+        if (c instanceof IfEq)  return ((IfEq) c).label;
+        if (c instanceof IfNEq) return ((IfNEq) c).label;
+        return null;
+    }
+
+    private static Code retarget(Code c, Label l) {
+        if (c instanceof Goto)  return new Goto(l);
+        if (c instanceof IfZ)   return new IfZ(l);
+        if (c instanceof IfNZ)  return new IfNZ(l);
+        if (c instanceof IfLt)  return new IfLt(((IfLt) c).type, l);
+        if (c instanceof IfGt)  return new IfGt(((IfGt) c).type, l);
+        if (c instanceof IfLe)  return new IfLe(((IfLe) c).type, l);
+        if (c instanceof IfGe)  return new IfGe(((IfGe) c).type, l);
+        if (c instanceof IfEq)  return new IfEq(((IfEq) c).type, l);
+        return new IfNEq(((IfNEq) c).type, l);
+    }
+
+    private static boolean isConst(Code c) {
+        return c instanceof IConst || c instanceof DConst;
+    }
+
+    private static boolean isLoad(Code c, int addr) {
+        return c instanceof Load && ((Load) c).addr == addr;
+    }
+
+    private static boolean isStore(Code c, int addr) {
+        return c instanceof Store && ((Store) c).addr == addr;
+    }
+
+    /* Address of an int load, or null. */
+    private static Integer intLoad(Code c) {
+        if (c instanceof Load && ((Load) c).type instanceof Type_int) return ((Load) c).addr;
+        return null;
+    }
+
+    /* The amount an IConst and an int Add or Minus change a value by, if
+     * iinc can do it without wide. */
+    private static Integer delta(Code k, Code op) {
+        if (!(k instanceof IConst)) return null;
+        int sign;
+        if (op instanceof Add && ((Add) op).type instanceof Type_int) sign = 1;
+        else if (op instanceof Minus && ((Minus) op).type instanceof Type_int) sign = -1;
+        else return null;
+        long d = sign * (long) ((IConst) k).immed;
+        return d == (byte) d ? (int) d : null;
+    }
+
+    private static List<Code> seq(Code... cs) {
+        return Arrays.asList(cs);
+    }
+}
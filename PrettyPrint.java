@@ -0,0 +1,19 @@
+import CPP.PrettyPrinter;
+import CPP.Absyn.*;
+
+/* Thread safe front of the generated CPP.PrettyPrinter, whose print
+ * methods share one static buffer. */
+public class PrettyPrint {
+
+    public static String print(Exp e) {
+        synchronized (PrettyPrinter.class) {
+            return PrettyPrinter.print(e);
+        }
+    }
+
+    public static String print(Stm s) {
+        synchronized (PrettyPrinter.class) {
+            return PrettyPrinter.print(s);
+        }
+    }
+}
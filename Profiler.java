@@ -0,0 +1,228 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.util.*;
+
+/* Execution profile of a CPP program: per function the number of calls,
+ * inclusive and exclusive time and the frame slots allocated, per while
+ * loop the number of times it was entered and iterated, and the time
+ * spent in each distinct call stack. Filled in by the ProfilingInterpreter. */
+public class Profiler {
+
+    public static class FunStats {
+        public final String name;
+        public long calls;
+        public long inclusiveNanos;
+        public long exclusiveNanos;
+        public long frameSlots;
+
+        /* Activations currently on the call stack, so recursive calls
+         * add their inclusive time only once. */
+        int active;
+
+        FunStats(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class LoopStats {
+        public final String label;
+        public long entries;
+        public long iterations;
+
+        LoopStats(String label) {
+            this.label = label;
+        }
+    }
+
+    /* Node of the calling context tree, for collapsed stack output. */
+    private static class StackNode {
+        final FunStats fun;
+        final StackNode parent;
+        final Map<FunStats, StackNode> children = new LinkedHashMap<FunStats, StackNode>();
+        long selfNanos;
+
+        StackNode(FunStats fun, StackNode parent) {
+            this.fun = fun;
+            this.parent = parent;
+        }
+
+        StackNode child(FunStats f) {
+            StackNode n = children.get(f);
+            if (n == null) {
+                n = new StackNode(f, this);
+                children.put(f, n);
+            }
+            return n;
+        }
+    }
+
+    private final Map<DFun, FunStats> funs = new IdentityHashMap<DFun, FunStats>();
+    private final Map<SWhile, LoopStats> loops = new IdentityHashMap<SWhile, LoopStats>();
+
+    /* Call stack: active functions, their start times and the time
+     * spent in their callees so far. */
+    private FunStats[] stack = new FunStats[64];
+    private long[] start = new long[64];
+    private long[] childNanos = new long[64];
+    private int depth;
+
+    private final StackNode root = new StackNode(null, null);
+    private StackNode current = root;
+
+    /* Creates the statistics of all functions and loops, numbering the
+     * loops of each function in textual order. Loops are those of the
+     * resolved bodies, which the interpreter runs. */
+    public void analyse(Resolver resolver, Program p) {
+        for (Def d : ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            funs.put(f, new FunStats(f.id_));
+            LoopLabeler labeler = new LoopLabeler(f.id_);
+            for (Stm s : resolver.layout(f.id_).body)
+                s.accept(labeler, null);
+        }
+    }
+
+    public LoopStats loop(SWhile s) {
+        return loops.get(s);
+    }
+
+    public void enter(DFun fun, int frameSlots) {
+        FunStats f = funs.get(fun);
+        f.calls++;
+        f.active++;
+        f.frameSlots += frameSlots;
+
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, 2 * depth);
+            start = Arrays.copyOf(start, 2 * depth);
+            childNanos = Arrays.copyOf(childNanos, 2 * depth);
+        }
+        stack[depth] = f;
+        childNanos[depth] = 0;
+        current = current.child(f);
+        start[depth++] = System.nanoTime();
+    }
+
+    public void exit() {
+        long t = System.nanoTime() - start[--depth];
+        FunStats f = stack[depth];
+        long self = t - childNanos[depth];
+        f.exclusiveNanos += self;
+        if (--f.active == 0) f.inclusiveNanos += t;
+        if (depth > 0) childNanos[depth - 1] += t;
+        current.selfNanos += self;
+        current = current.parent;
+    }
+
+    ////////////////////////////// Reports //////////////////////////////
+
+    /* Human readable report, functions sorted by exclusive time. */
+    public void report(PrintStream s) {
+        List<FunStats> fs = new ArrayList<FunStats>(funs.values());
+        Collections.sort(fs, new Comparator<FunStats>() {
+            public int compare(FunStats a, FunStats b) {
+                return Long.compare(b.exclusiveNanos, a.exclusiveNanos);
+            }
+        });
+        s.printf("%-20s %12s %12s %12s %14s%n", "function", "calls", "incl ms", "excl ms", "frame slots");
+        for (FunStats f : fs) {
+            if (f.calls == 0) continue;
+            s.printf("%-20s %12d %12.3f %12.3f %14d%n", f.name, f.calls,
+                     f.inclusiveNanos / 1e6, f.exclusiveNanos / 1e6, f.frameSlots);
+        }
+
+        List<LoopStats> ls = new ArrayList<LoopStats>(loops.values());
+        Collections.sort(ls, new Comparator<LoopStats>() {
+            public int compare(LoopStats a, LoopStats b) {
+                return Long.compare(b.iterations, a.iterations);
+            }
+        });
+        if (!ls.isEmpty())
+            s.printf("%n%-40s %12s %12s%n", "loop", "entries", "iterations");
+        for (LoopStats l : ls)
+            s.printf("%-40s %12d %12d%n", l.label, l.entries, l.iterations);
+    }
+
+    /* Machine readable report. */
+    public void writeJson(PrintStream s) {
+        s.println("{");
+        s.println("  \"functions\": [");
+        String sep = "";
+        for (FunStats f : funs.values()) {
+            s.print(sep);
+            s.print("    {\"name\": " + quote(f.name) + ", \"calls\": " + f.calls
+                    + ", \"inclusiveNanos\": " + f.inclusiveNanos
+                    + ", \"exclusiveNanos\": " + f.exclusiveNanos
+                    + ", \"frameSlots\": " + f.frameSlots + "}");
+            sep = ",\n";
+        }
+        s.println();
+        s.println("  ],");
+        s.println("  \"loops\": [");
+        sep = "";
+        for (LoopStats l : loops.values()) {
+            s.print(sep);
+            s.print("    {\"label\": " + quote(l.label) + ", \"entries\": " + l.entries
+                    + ", \"iterations\": " + l.iterations + "}");
+            sep = ",\n";
+        }
+        s.println();
+        s.println("  ]");
+        s.println("}");
+    }
+
+    /* One line per call stack with its exclusive time in microseconds,
+     * the input format of flamegraph.pl. */
+    public void writeCollapsed(PrintStream s) {
+        writeCollapsed(s, root, "");
+    }
+
+    private void writeCollapsed(PrintStream s, StackNode n, String path) {
+        for (StackNode c : n.children.values()) {
+            String p = path.isEmpty() ? c.fun.name : path + ";" + c.fun.name;
+            long micros = c.selfNanos / 1000;
+            if (micros > 0) s.println(p + " " + micros);
+            writeCollapsed(s, c, p);
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /* Labels loops "fun: while#k (condition)". */
+    private class LoopLabeler implements Stm.Visitor<Void, Void> {
+        private final String fun;
+        private int count;
+
+        LoopLabeler(String fun) {
+            this.fun = fun;
+        }
+
+        public Void visit(CPP.Absyn.SExp p, Void arg)    { return null; }
+        public Void visit(CPP.Absyn.SDecls p, Void arg)  { return null; }
+        public Void visit(CPP.Absyn.SInit p, Void arg)   { return null; }
+        public Void visit(CPP.Absyn.SReturn p, Void arg) { return null; }
+
+        public Void visit(CPP.Absyn.SWhile p, Void arg) {
+            loops.put(p, new LoopStats(fun + ": while#" + ++count
+                                       + " (" + PrettyPrint.print(p.exp_) + ")"));
+            p.stm_.accept(this, null);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SBlock p, Void arg) {
+            for (Stm s : p.liststm_)
+                s.accept(this, null);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SIfElse p, Void arg) {
+            p.stm_1.accept(this, null);
+            p.stm_2.accept(this, null);
+            return null;
+        }
+    }
+}
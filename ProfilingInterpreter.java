@@ -0,0 +1,70 @@
+import CPP.Absyn.*;
+import java.io.*;
+
+/* Interpreter that records a Profiler profile while it runs. The hooks
+ * live only in this subclass, so the plain Interpreter pays nothing for
+ * them when profiling is off. */
+public class ProfilingInterpreter extends Interpreter {
+
+    private final Profiler profiler = new Profiler();
+
+    /* Where to write the profile besides err, or null. */
+    private final String profileFile;
+
+    public ProfilingInterpreter(Input in, Output out, boolean memoize, PrintStream err,
+                                String profileFile) {
+        super(in, out, memoize, err);
+        this.profileFile = profileFile;
+        this.stmVisitor = new ProfilingStmVisitor();
+    }
+
+    protected void resolved(Program p, Resolver resolver) {
+        profiler.analyse(resolver, p);
+    }
+
+    public void interpret(Program p) {
+        try {
+            super.interpret(p);
+        } finally {
+            profiler.report(err);
+            if (profileFile != null) writeProfile();
+        }
+    }
+
+    protected Value call(Resolver.FunLayout callee, Value[] frame) {
+        profiler.enter(callee.fun, frame.length);
+        try {
+            return super.call(callee, frame);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    /* Counts the iterations of each while loop. */
+    public class ProfilingStmVisitor extends StmVisitor {
+        public Value visit(CPP.Absyn.SWhile p, RuntimeEnv env)
+        {
+            Profiler.LoopStats loop = profiler.loop(p);
+            loop.entries++;
+            while (true) {
+                VBool condition = (VBool) p.exp_.accept(expVisitor, env);
+                if (!condition.value) return null;
+                loop.iterations++;
+                Value v = p.stm_.accept(stmVisitor, env);
+                if (v != null) return v;
+            }
+        }
+    }
+
+    /* JSON if the file name ends in .json, else collapsed stacks. */
+    private void writeProfile() {
+        try (PrintStream s = new PrintStream(new FileOutputStream(profileFile))) {
+            if (profileFile.endsWith(".json"))
+                profiler.writeJson(s);
+            else
+                profiler.writeCollapsed(s);
+        } catch (IOException e) {
+            err.println("Cannot write profile: " + e.getMessage());
+        }
+    }
+}
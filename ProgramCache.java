@@ -0,0 +1,42 @@
+import java.util.*;
+
+/* Bounded in-memory cache of checked programs, keyed by their source
+ * text, evicting the least recently used entry when full. Lets a long
+ * running lab2 skip parsing and type checking of unchanged programs.
+ * Safe to share between threads. */
+public class ProgramCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<String, CheckedProgram> entries;
+    private long hits;
+    private long misses;
+
+    public ProgramCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ProgramCache(final int capacity) {
+        entries = new LinkedHashMap<String, CheckedProgram>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CheckedProgram> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /* The checked program of this source, or null if it is not cached. */
+    public synchronized CheckedProgram get(String source) {
+        CheckedProgram p = entries.get(source);
+        if (p != null) hits++;
+        else misses++;
+        return p;
+    }
+
+    public synchronized void put(String source, CheckedProgram p) {
+        entries.put(source, p);
+    }
+
+    public synchronized String toString() {
+        return entries.size() + " programs, " + hits + " hits, " + misses + " misses";
+    }
+}
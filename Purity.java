@@ -0,0 +1,36 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Finds the pure functions of a program: those that neither call a
+ * builtin, which all do input or output, nor an impure function. CPP has
+ * no global state, so the result of a pure function depends only on its
+ * arguments. Must run after the Resolver, whose call sites it uses. */
+public class Purity {
+
+    private final Set<String> pure = new HashSet<String>();
+
+    public void analyse(Resolver resolver, Program p) {
+        /* Start from all functions and drop impure ones until nothing
+         * changes, so (mutually) recursive functions stay pure. */
+        for (Def d : ((PDefs) p).listdef_)
+            pure.add(((DFun) d).id_);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Iterator<String> it = pure.iterator(); it.hasNext(); ) {
+                for (Resolver.CallSite c : resolver.layout(it.next()).calls) {
+                    if (c.builtin != null || !pure.contains(c.callee.fun.id_)) {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isPure(String fun) {
+        return pure.contains(fun);
+    }
+}
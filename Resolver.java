@@ -0,0 +1,324 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Resolves every variable occurrence to a fixed slot in the activation
+ * frame of its function. Must run after the TypeChecker, so every
+ * identifier is known to be bound.
+ *
+ * The slots and call targets of the original nodes can be looked up, for
+ * engines that do so once while preparing. Each function also gets a
+ * resolved copy of its body, whose variable, declaration and call nodes
+ * carry their slots and targets, for the visitor interpreter to read
+ * without a lookup. The copy has no types in the TypeChecker. */
+public class Resolver {
+
+    /* Frame layout of a single function. */
+    public static class FunLayout {
+        public final DFun fun;
+        public final int[] paramSlots;
+        public int frameSize;
+
+        /* The resolved copy of the body of fun. */
+        public ListStm body;
+
+        /* Call sites in the body, in textual order. */
+        public final List<CallSite> calls = new ArrayList<CallSite>();
+
+        public FunLayout(DFun fun) {
+            this.fun = fun;
+            this.paramSlots = new int[fun.listarg_.size()];
+        }
+    }
+
+    /* Target of a function call: a builtin, or a user defined function. */
+    public static class CallSite {
+        public final Builtin builtin;
+        public final FunLayout callee;
+
+        public CallSite(Builtin builtin, FunLayout callee) {
+            this.builtin = builtin;
+            this.callee = callee;
+        }
+    }
+
+    ///////////////////////////// Resolved nodes //////////////////////////
+
+    public static class Var extends EId {
+        public final int slot;
+        Var(String id, int slot) { super(id); this.slot = slot; }
+    }
+
+    public static class Assign extends EAss {
+        public final int slot;
+        Assign(String id, Exp e, int slot) { super(id, e); this.slot = slot; }
+    }
+
+    public static class PostIncr extends EPostIncr {
+        public final int slot;
+        PostIncr(String id, int slot) { super(id); this.slot = slot; }
+    }
+
+    public static class PostDecr extends EPostDecr {
+        public final int slot;
+        PostDecr(String id, int slot) { super(id); this.slot = slot; }
+    }
+
+    public static class PreIncr extends EPreIncr {
+        public final int slot;
+        PreIncr(String id, int slot) { super(id); this.slot = slot; }
+    }
+
+    public static class PreDecr extends EPreDecr {
+        public final int slot;
+        PreDecr(String id, int slot) { super(id); this.slot = slot; }
+    }
+
+    /* Literals carry their value, built once. */
+    public static class IntLit extends EInt {
+        public final VInt value;
+        IntLit(Integer i) { super(i); value = new VInt(i); }
+    }
+
+    public static class DoubleLit extends EDouble {
+        public final VDouble value;
+        DoubleLit(Double d) { super(d); value = new VDouble(d); }
+    }
+
+    public static class App extends EApp {
+        public final CallSite site;
+        App(String id, ListExp args, CallSite site) { super(id, args); this.site = site; }
+    }
+
+    public static class Init extends SInit {
+        public final int slot;
+        Init(Type t, String id, Exp e, int slot) { super(t, id, e); this.slot = slot; }
+    }
+
+    public static class Decls extends SDecls {
+        public final int[] slots;
+        Decls(Type t, ListId ids, int[] slots) { super(t, ids); this.slots = slots; }
+    }
+
+    private final Map<String, FunLayout> layouts = new HashMap<String, FunLayout>();
+
+    /* Slot of each EId, EAss, ++/-- and SInit node, and of each id in SDecls. */
+    private final IdentityHashMap<Object, Integer> slots = new IdentityHashMap<Object, Integer>();
+    private final IdentityHashMap<SDecls, int[]> declSlots = new IdentityHashMap<SDecls, int[]>();
+
+    /* Target of each EApp node. */
+    private final IdentityHashMap<EApp, CallSite> calls = new IdentityHashMap<EApp, CallSite>();
+
+    /* Scopes of the function currently being resolved. */
+    private LinkedList<Map<String, Integer>> scopes;
+    private FunLayout current;
+    private int nextSlot;
+
+    private final StmVisitor stmVisitor = new StmVisitor();
+    private final ExpVisitor expVisitor = new ExpVisitor();
+
+    public void resolve(Program p) {
+        for (Def d : ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            layouts.put(f.id_, new FunLayout(f));
+        }
+        for (Def d : ((PDefs) p).listdef_)
+            d.accept(new DefVisitor(), null);
+    }
+
+    public FunLayout layout(String fun) {
+        return layouts.get(fun);
+    }
+
+    public int slot(Exp e) {
+        return slots.get(e);
+    }
+
+    public int slot(SInit s) {
+        return slots.get(s);
+    }
+
+    public int[] slots(SDecls s) {
+        return declSlots.get(s);
+    }
+
+    public CallSite call(EApp e) {
+        return calls.get(e);
+    }
+
+    ///////////////////////////// Function //////////////////////////////
+
+    public class DefVisitor implements Def.Visitor<Void, Void> {
+        public Void visit(CPP.Absyn.DFun p, Void arg) {
+            current = layouts.get(p.id_);
+            scopes = new LinkedList<Map<String, Integer>>();
+            nextSlot = 0;
+            newScope();
+
+            /* Formal parameters occupy the first slots of the frame. */
+            int i = 0;
+            for (Arg a : p.listarg_)
+                current.paramSlots[i++] = newVar(((ADecl) a).id_);
+
+            current.body = statements(p.liststm_);
+            return null;
+        }
+    }
+
+    ////////////////////////////// Statement //////////////////////////////
+
+    public class StmVisitor implements Stm.Visitor<Stm, Void> {
+        public Stm visit(CPP.Absyn.SExp p, Void arg) {
+            return new SExp(p.exp_.accept(expVisitor, null));
+        }
+
+        public Stm visit(CPP.Absyn.SDecls p, Void arg) {
+            int[] s = new int[p.listid_.size()];
+            int i = 0;
+            for (String id : p.listid_)
+                s[i++] = newVar(id);
+            declSlots.put(p, s);
+            return new Decls(p.type_, p.listid_, s);
+        }
+
+        public Stm visit(CPP.Absyn.SInit p, Void arg) {
+            /* The initializer is resolved before the variable comes into scope. */
+            Exp e = p.exp_.accept(expVisitor, null);
+            int slot = newVar(p.id_);
+            slots.put(p, slot);
+            return new Init(p.type_, p.id_, e, slot);
+        }
+
+        public Stm visit(CPP.Absyn.SReturn p, Void arg) {
+            return new SReturn(p.exp_.accept(expVisitor, null));
+        }
+
+        public Stm visit(CPP.Absyn.SWhile p, Void arg) {
+            Exp e = p.exp_.accept(expVisitor, null);
+            newScope();
+            Stm s = p.stm_.accept(stmVisitor, null);
+            popScope();
+            return new SWhile(e, s);
+        }
+
+        public Stm visit(CPP.Absyn.SBlock p, Void arg) {
+            newScope();
+            ListStm ss = statements(p.liststm_);
+            popScope();
+            return new SBlock(ss);
+        }
+
+        public Stm visit(CPP.Absyn.SIfElse p, Void arg) {
+            Exp e = p.exp_.accept(expVisitor, null);
+            newScope();
+            Stm s1 = p.stm_1.accept(stmVisitor, null);
+            popScope();
+            newScope();
+            Stm s2 = p.stm_2.accept(stmVisitor, null);
+            popScope();
+            return new SIfElse(e, s1, s2);
+        }
+    }
+
+    ////////////////////////////// Expression //////////////////////////////
+
+    public class ExpVisitor implements Exp.Visitor<Exp, Void> {
+        public Exp visit(CPP.Absyn.ETrue p, Void arg)   { return p; }
+        public Exp visit(CPP.Absyn.EFalse p, Void arg)  { return p; }
+        public Exp visit(CPP.Absyn.EInt p, Void arg)    { return new IntLit(p.integer_); }
+        public Exp visit(CPP.Absyn.EDouble p, Void arg) { return new DoubleLit(p.double_); }
+
+        public Exp visit(CPP.Absyn.EId p, Void arg) {
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new Var(p.id_, slot);
+        }
+        public Exp visit(CPP.Absyn.EApp p, Void arg) {
+            CallSite site = new CallSite(Builtin.of(p.id_), layouts.get(p.id_));
+            calls.put(p, site);
+            current.calls.add(site);
+            ListExp es = new ListExp();
+            for (Exp e : p.listexp_)
+                es.add(e.accept(expVisitor, null));
+            return new App(p.id_, es, site);
+        }
+        public Exp visit(CPP.Absyn.EPostIncr p, Void arg) {
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new PostIncr(p.id_, slot);
+        }
+        public Exp visit(CPP.Absyn.EPostDecr p, Void arg) {
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new PostDecr(p.id_, slot);
+        }
+        public Exp visit(CPP.Absyn.EPreIncr p, Void arg) {
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new PreIncr(p.id_, slot);
+        }
+        public Exp visit(CPP.Absyn.EPreDecr p, Void arg) {
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new PreDecr(p.id_, slot);
+        }
+
+        public Exp visit(CPP.Absyn.ETimes p, Void arg) { return new ETimes(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EDiv p, Void arg)   { return new EDiv(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EPlus p, Void arg)  { return new EPlus(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EMinus p, Void arg) { return new EMinus(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ELt p, Void arg)    { return new ELt(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EGt p, Void arg)    { return new EGt(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ELtEq p, Void arg)  { return new ELtEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EGtEq p, Void arg)  { return new EGtEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EEq p, Void arg)    { return new EEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.ENEq p, Void arg)   { return new ENEq(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EAnd p, Void arg)   { return new EAnd(exp(p.exp_1), exp(p.exp_2)); }
+        public Exp visit(CPP.Absyn.EOr p, Void arg)    { return new EOr(exp(p.exp_1), exp(p.exp_2)); }
+
+        public Exp visit(CPP.Absyn.EAss p, Void arg) {
+            Exp e = p.exp_.accept(expVisitor, null);
+            int slot = lookupVar(p.id_);
+            slots.put(p, slot);
+            return new Assign(p.id_, e, slot);
+        }
+
+        /* Operands are resolved left to right, as they are evaluated. */
+        private Exp exp(Exp e) {
+            return e.accept(expVisitor, null);
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private ListStm statements(ListStm ss) {
+        ListStm copy = new ListStm();
+        for (Stm s : ss)
+            copy.add(s.accept(stmVisitor, null));
+        return copy;
+    }
+
+    private int newVar(String id) {
+        int slot = nextSlot++;
+        if (nextSlot > current.frameSize)
+            current.frameSize = nextSlot;
+        scopes.peek().put(id, slot);
+        return slot;
+    }
+
+    private int lookupVar(String id) {
+        for (Map<String, Integer> s : scopes) {
+            Integer slot = s.get(id);
+            if (slot != null) return slot;
+        }
+        throw new RuntimeException("Impossible: unbound variable " + id);
+    }
+
+    private void newScope() {
+        scopes.push(new HashMap<String, Integer>());
+    }
+
+    /* Slots of a closed scope are free to be reused by later siblings. */
+    private void popScope() {
+        nextSlot -= scopes.pop().size();
+    }
+}
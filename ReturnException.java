@@ -1,6 +0,0 @@
-public class ReturnException extends RuntimeException {
-    public final Value returnValue;
-    public ReturnException(Value v) {
-        returnValue = v;
-    }
-}
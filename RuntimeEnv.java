@@ -4,13 +4,12 @@ import CPP.Absyn.*;
 public class RuntimeEnv {
 
     private Map<String, DFun> sig;
-    private LinkedList<Map<String, Value>> ctx;
-    private LinkedList<Map<String, Value>> functionCallReturnStubs;
+
+    /* Activation frame of the executing function, indexed by Resolver slots. */
+    private Value[] frame;
 
     public RuntimeEnv() {
         sig = new HashMap<String, DFun>();
-        ctx = new LinkedList<Map<String, Value>>();
-        functionCallReturnStubs = new LinkedList<Map<String, Value>>();
     }
 
     public void addFun(String id, DFun f) {
@@ -23,58 +22,32 @@ public class RuntimeEnv {
         return sig.get(id);
     }
 
-    public Value lookupVar(String id) {
-        for (Map<String, Value> c : ctx) {
-            Value v = c.get(id);
-            if (v != null) return v;
-        }
-        throw new RuntimeException ("unbound variable " + id);
-    }
-
-    public void assignVar(String id, Value v) {
-        for (Map<String, Value> c : ctx) {
-            Value oldv = c.get(id);
-            if (oldv != null) {
-                c.put(id, v);
-                return;
-            }
-        }
-        throw new RuntimeException ("unbound variable " + id);
-    }
-
-    public void newVar(String id, Value v) {
-        /* Make sure that the variable is not defined in current scope. */
-        if (ctx.peek().containsKey(id))
-            throw new RuntimeException ("Variable " + id + " already defined");
-        ctx.peek().put(id, v);
-    }
-
-    /* When calling a function, we need to remember the returning context. */
-    public void setFunctionCallReturnStub() {
-        functionCallReturnStubs.push(ctx.peek());
+    public Value lookupVar(int slot) {
+        return frame[slot];
     }
 
-    /* After function execution completed, resume the context before the function call. */
-    public void resumeCtxAfterFunctionCall() {
-        Map<String, Value> stub = functionCallReturnStubs.pop();
-        while (ctx.peek() != stub)
-            ctx.pop();
+    public void assignVar(int slot, Value v) {
+        frame[slot] = v;
     }
 
-    public void newContext() {
-        ctx.push(new HashMap<String, Value>());
+    public void newVar(int slot, Value v) {
+        frame[slot] = v;
     }
 
-    public void newContext(HashMap<String, Value> c) {
-        ctx.push(c);
+    /* When calling a function, switch to its frame and return the caller's one. */
+    public Value[] enterFrame(Value[] f) {
+        Value[] caller = frame;
+        frame = f;
+        return caller;
     }
 
-    public void delContext() {
-        ctx.pop();
+    /* After function execution completed, resume the caller's frame. */
+    public void leaveFrame(Value[] caller) {
+        frame = caller;
     }
 
     public String toString() {
-        return ctx.toString();
+        return Arrays.toString(frame);
     }
 
 }
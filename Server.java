@@ -0,0 +1,271 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Long running lab2: runs the programs sent by lab2c in one warm JVM, so
+ * each run pays neither JVM startup nor a cold JIT.
+ *
+ * Listens on a Unix domain socket, by default DEFAULT_SOCKET, or on a
+ * loopback TCP port if given a number, and serves each connection on a
+ * thread of a fixed pool. The socket file is only open to the server's
+ * user. A TCP port is open to every local user, so there each request
+ * has to carry the token the server writes to TOKEN_FILE, which only the
+ * server's user can read.
+ *
+ * A request is the token (empty on a Unix socket), the client's working
+ * directory and lab2 arguments, followed by the program's standard input
+ * up to the end of the stream. Arguments that write files of the server's
+ * choosing, -d, -P and -C, are refused. The reply streams back the
+ * program's standard output and error as frames: a tag, 'O' or 'E', the
+ * length and the bytes; a final 'X' frame carries the exit status.
+ * With -a parsed and type checked programs are cached by source text. */
+public class Server {
+
+    public static final String DEFAULT_SOCKET =
+        Paths.get(System.getProperty("user.home"), ".lab2d.sock").toString();
+    public static final Path TOKEN_FILE =
+        Paths.get(System.getProperty("user.home"), ".lab2d.token");
+
+    /* lab2 arguments a client may not give. */
+    private static final Set<String> REFUSED = new HashSet<String>(Arrays.asList("-d", "-P", "-C"));
+
+    public static void usage() {
+        System.err.println("Usage: lab2d [-a] [-t <threads>] [<SocketPath> | <Port>]");
+        System.err.println("  -a         cache parsed and type checked programs");
+        System.err.println("  -t <n>     number of programs run at once (default: number of cores)");
+        System.err.println("  <Path>     Unix domain socket to listen on (default " + DEFAULT_SOCKET + ")");
+        System.err.println("  <Port>     loopback TCP port to listen on; clients need the token in");
+        System.err.println("             " + TOKEN_FILE);
+        System.exit(1);
+    }
+
+    public static void main(String args[]) {
+        String target = null;
+        boolean cache = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-a":
+                    cache = true;
+                    break;
+
+                case "-t":
+                    if (++i == args.length) usage();
+                    try {
+                        threads = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    break;
+
+                default:
+                    if (target != null) usage();
+                    target = arg;
+                    break;
+            }
+        }
+        if (threads < 1) usage();
+
+        final SocketAddress address = address(target == null ? DEFAULT_SOCKET : target);
+        final ProgramCache programs = cache ? new ProgramCache() : null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (ServerSocketChannel server = listen(address)) {
+            final String token = address instanceof UnixDomainSocketAddress ? "" : writeToken();
+            System.err.println("lab2d listening on " + address);
+            while (true) {
+                final SocketChannel client = server.accept();
+                pool.submit(new Runnable() {
+                    public void run() {
+                        serve(client, token, programs);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            System.exit(1);
+        }
+    }
+
+    /* A port number means loopback TCP, anything else a Unix domain socket. */
+    public static SocketAddress address(String s) {
+        if (s.matches("[0-9]+"))
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(s));
+        return UnixDomainSocketAddress.of(s);
+    }
+
+    private static ServerSocketChannel listen(SocketAddress address) throws IOException {
+        if (!(address instanceof UnixDomainSocketAddress))
+            return ServerSocketChannel.open().bind(address);
+
+        /* The socket is bound in a directory only the user can enter and
+         * made owner-only there, before it is moved to where clients find
+         * it; a socket file left behind by an earlier server is replaced. */
+        final Path path = ((UnixDomainSocketAddress) address).getPath().toAbsolutePath();
+        Path dir = Files.createTempDirectory(path.getParent(), ".lab2d",
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = dir.resolve("socket");
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+            .bind(UnixDomainSocketAddress.of(bound));
+        try {
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(dir);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                }
+            }
+        });
+        return server;
+    }
+
+    /* A fresh token for TCP clients, written to a file that only the
+     * server's user can read. */
+    private static String writeToken() throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes)
+            token.append(String.format("%02x", b));
+
+        Files.deleteIfExists(TOKEN_FILE);
+        Files.createFile(TOKEN_FILE,
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(TOKEN_FILE, token.toString().getBytes("UTF-8"));
+        return token.toString();
+    }
+
+    /* The token a TCP client sends: $LAB2_TOKEN, or else the contents of
+     * TOKEN_FILE. */
+    public static String readToken() throws IOException {
+        String token = System.getenv("LAB2_TOKEN");
+        if (token != null && !token.isEmpty()) return token;
+        return new String(Files.readAllBytes(TOKEN_FILE), "UTF-8").trim();
+    }
+
+    /* Runs the request of one connection. */
+    private static void serve(SocketChannel client, String token, ProgramCache programs) {
+        try (SocketChannel c = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream(c)));
+
+            byte[] sent = in.readUTF().getBytes("UTF-8");
+            Path cwd = Paths.get(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = in.readUTF();
+
+            PrintStream stdout = new PrintStream(new FrameStream(out, 'O'));
+            PrintStream stderr = new PrintStream(new FrameStream(out, 'E'));
+            int status;
+            String refused = refused(args);
+            if (!MessageDigest.isEqual(sent, token.getBytes("UTF-8"))) {
+                stderr.println("lab2d: wrong token");
+                status = 1;
+            } else if (refused != null) {
+                stderr.println("lab2d: " + refused + " is not allowed on the server");
+                status = 1;
+            } else {
+                try {
+                    status = lab2.run(args, cwd, in, stdout, stderr, programs);
+                } catch (Throwable e) {
+                    stderr.println(e.toString());
+                    status = -1;
+                }
+            }
+            stdout.flush();
+            stderr.flush();
+            synchronized (out) {
+                out.writeByte('X');
+                out.writeInt(status);
+                out.flush();
+            }
+
+            /* Let the client read the whole reply before the connection
+             * goes away: drop the rest of its input until it hangs up. */
+            c.shutdownOutput();
+            byte[] rest = new byte[8192];
+            while (in.read(rest) >= 0) ;
+        } catch (IOException e) {
+            /* The client went away, nobody is left to tell. */
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    /* The first of args that a client may not give, or null. */
+    static String refused(String[] args) {
+        for (String arg : args)
+            if (REFUSED.contains(arg)) return arg;
+        return null;
+    }
+
+    /* Frames everything written to it with the given tag. */
+    static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final char tag;
+
+        FrameStream(DataOutputStream out, char tag) {
+            this.out = out;
+            this.tag = tag;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            synchronized (out) {
+                out.writeByte(tag);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+
+    /* Streams over a socket channel that, unlike those of
+     * java.nio.channels.Channels, can be read and written at once. */
+    static InputStream inputStream(final SocketChannel c) {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : c.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    static OutputStream outputStream(final SocketChannel c) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining())
+                    c.write(buf);
+            }
+        };
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.*;
+import CPP.Absyn.*;
+
+/* Assigns the local variable slots of one compiled function by liveness.
+ *
+ * The compiler gives every variable of a function slots of its own. A
+ * backwards data flow pass over the instructions finds where each is
+ * live, that is, may still be read before it is next stored, and two
+ * variables interfere when one is stored where the other is live. The
+ * variables are then packed, in the order they appear, into the lowest
+ * slots that no interfering variable holds, a double taking two adjacent
+ * ones. So variables of blocks that have ended, and parameters after
+ * their last use, hand their slots on to later variables.
+ *
+ * Parameters keep their slots. A variable that may be read before it is
+ * stored, and so starts out as zero, keeps slots that no other variable
+ * uses, which the zero stored at entry then always belongs to. */
+public class SlotAllocator {
+
+    private final List<Code> code;
+    private final int paramSlots;
+
+    /* The variables, by their slot from the compiler. */
+    private final Map<Integer, Integer> vars = new LinkedHashMap<Integer, Integer>();
+    private final List<Integer> addr = new ArrayList<Integer>();
+    private final List<Integer> size = new ArrayList<Integer>();
+
+    private final Map<Label, Integer> targets = new IdentityHashMap<Label, Integer>();
+    private BitSet[] liveIn;
+    private BitSet[] interferes;
+
+    private SlotAllocator(List<Code> code, int paramSlots) {
+        this.code = code;
+        this.paramSlots = paramSlots;
+    }
+
+    /* Renumbers the locals of code in place; returns the number of slots
+     * it uses, at least those of the parameters. */
+    public static int allocate(List<Code> code, int paramSlots) {
+        SlotAllocator a = new SlotAllocator(code, paramSlots);
+        a.variables();
+        a.liveness();
+        a.interference();
+        return a.assign();
+    }
+
+    private void variables() {
+        for (int i = 0; i < code.size(); i++) {
+            Code c = code.get(i);
+            if (c instanceof Target) targets.put(((Target) c).label, i);
+            int a = slot(c);
+            if (a >= 0 && !vars.containsKey(a)) {
+                vars.put(a, addr.size());
+                addr.add(a);
+                size.add(c instanceof Inc ? 1 : size(type(c)));
+            }
+        }
+    }
+
+    /* Variables live before each instruction, until nothing changes. */
+    private void liveness() {
+        liveIn = new BitSet[code.size() + 1];
+        for (int i = 0; i <= code.size(); i++)
+            liveIn[i] = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = code.size() - 1; i >= 0; i--) {
+                BitSet live = liveOut(i);
+                int v = var(code.get(i));
+                if (code.get(i) instanceof Store) live.clear(v);
+                if (code.get(i) instanceof Load || code.get(i) instanceof Inc) live.set(v);
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void interference() {
+        int n = addr.size();
+        interferes = new BitSet[n];
+        for (int v = 0; v < n; v++)
+            interferes[v] = new BitSet();
+        for (int i = 0; i < code.size(); i++) {
+            Code c = code.get(i);
+            if (!(c instanceof Store || c instanceof Inc)) continue;
+            int v = var(c);
+            BitSet live = liveOut(i);
+            live.clear(v);
+            interferes[v].or(live);
+            for (int w = live.nextSetBit(0); w >= 0; w = live.nextSetBit(w + 1))
+                interferes[w].set(v);
+        }
+
+        /* Parameters are stored at entry, and the zeros of variables read
+         * before any store shared with no one. */
+        BitSet entry = code.isEmpty() ? new BitSet() : liveIn[0];
+        for (int v = entry.nextSetBit(0); v >= 0; v = entry.nextSetBit(v + 1)) {
+            if (addr.get(v) < paramSlots) {
+                interferes[v].or(entry);
+            } else {
+                interferes[v].set(0, n);
+                for (int w = 0; w < n; w++)
+                    interferes[w].set(v);
+            }
+        }
+    }
+
+    /* Packs the variables and rewrites the instructions. */
+    private int assign() {
+        int n = addr.size();
+        int[] slot = new int[n];
+        Arrays.fill(slot, -1);
+        int slots = paramSlots;
+        for (int v = 0; v < n; v++)
+            if (addr.get(v) < paramSlots) slot[v] = addr.get(v);
+        for (int v = 0; v < n; v++) {
+            if (slot[v] >= 0) continue;
+            int s = 0;
+            while (overlaps(v, s, slot)) s++;
+            slot[v] = s;
+            slots = Math.max(slots, s + size.get(v));
+        }
+
+        for (int i = 0; i < code.size(); i++) {
+            Code c = code.get(i);
+            if (c instanceof Load)  code.set(i, new Load(((Load) c).type, slot[var(c)]));
+            if (c instanceof Store) code.set(i, new Store(((Store) c).type, slot[var(c)]));
+            if (c instanceof Inc)   code.set(i, new Inc(slot[var(c)], ((Inc) c).delta));
+        }
+        return slots;
+    }
+
+    /* Whether slots from s on would overlap those of a variable that
+     * interferes with v. */
+    private boolean overlaps(int v, int s, int[] slot) {
+        BitSet others = interferes[v];
+        for (int w = others.nextSetBit(0); w >= 0; w = others.nextSetBit(w + 1))
+            if (w != v && slot[w] >= 0 && s < slot[w] + size.get(w) && slot[w] < s + size.get(v))
+                return true;
+        return false;
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private BitSet liveOut(int i) {
+        BitSet live = new BitSet();
+        Code c = code.get(i);
+        if (c instanceof Return) return live;
+        if (!(c instanceof Goto)) live.or(liveIn[i + 1]);
+        Label l = Peephole.label(c);
+        if (l != null) live.or(liveIn[targets.get(l)]);
+        return live;
+    }
+
+    /* The compiler's slot of the variable c uses, or -1. */
+    private static int slot(Code c) {
+        if (c instanceof Load)  return ((Load) c).addr;
+        if (c instanceof Store) return ((Store) c).addr;
+        if (c instanceof Inc)   return ((Inc) c).addr;
+        return -1;
+    }
+
+    private int var(Code c) {
+        return slot(c) < 0 ? -1 : vars.get(slot(c));
+    }
+
+    private static Type type(Code c) {
+        return c instanceof Load ? ((Load) c).type : ((Store) c).type;
+    }
+
+    private static int size(Type t) {
+        return t instanceof Type_double ? 2 : 1;
+    }
+}
@@ -0,0 +1,61 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Finds self tail calls: return statements whose value is a call of the
+ * enclosing function. Backends turn them into a jump back to the entry
+ * of the function, reusing its frame instead of growing the stack. */
+public class TailCalls {
+
+    private final Set<SReturn> selfTailCalls =
+        Collections.newSetFromMap(new IdentityHashMap<SReturn, Boolean>());
+
+    private final StmVisitor stmVisitor = new StmVisitor();
+
+    public void analyse(Program p) {
+        for (Def d : ((PDefs) p).listdef_) {
+            DFun f = (DFun) d;
+            analyse(f, f.liststm_);
+        }
+    }
+
+    /* Analyses body as the body of f, e.g. a resolved copy of it. */
+    public void analyse(DFun f, ListStm body) {
+        for (Stm s : body)
+            s.accept(stmVisitor, f);
+    }
+
+    public boolean isSelfTailCall(SReturn s) {
+        return selfTailCalls.contains(s);
+    }
+
+    ////////////////////////////// Statement //////////////////////////////
+
+    public class StmVisitor implements Stm.Visitor<Void, DFun> {
+        public Void visit(CPP.Absyn.SExp p, DFun f)    { return null; }
+        public Void visit(CPP.Absyn.SDecls p, DFun f)  { return null; }
+        public Void visit(CPP.Absyn.SInit p, DFun f)   { return null; }
+
+        public Void visit(CPP.Absyn.SReturn p, DFun f) {
+            if (p.exp_ instanceof EApp && ((EApp) p.exp_).id_.equals(f.id_))
+                selfTailCalls.add(p);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SWhile p, DFun f) {
+            p.stm_.accept(stmVisitor, f);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SBlock p, DFun f) {
+            for (Stm s : p.liststm_)
+                s.accept(stmVisitor, f);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SIfElse p, DFun f) {
+            p.stm_1.accept(stmVisitor, f);
+            p.stm_2.accept(stmVisitor, f);
+            return null;
+        }
+    }
+}
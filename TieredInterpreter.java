@@ -0,0 +1,227 @@
+import CPP.Absyn.*;
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Interpreter that moves hot functions to JVM bytecode.
+ *
+ * Every function starts out interpreted, counting its calls and the
+ * iterations of its while loops. When the count reaches the threshold,
+ * the function and all functions it can call are compiled by Compiler
+ * and ClassAssembler into one class, on a background thread, while
+ * interpretation goes on. Later calls of any of these functions from
+ * interpreted code run the compiled method, which only calls compiled
+ * code. A call that is already running stays interpreted until it
+ * returns. Functions the compiler cannot handle stay interpreted.
+ *
+ * Compiled code computes exactly what the interpreter does, so when a
+ * function moves over cannot change the output; check/tiered.cc keeps
+ * it so. */
+public class TieredInterpreter extends Interpreter {
+
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    /* Execution state of one function. */
+    private static class Tier {
+        final Resolver.FunLayout layout;
+        int count;                          // calls and loop iterations so far
+        boolean queued;                     // sent to be compiled, or failed to
+        volatile MethodHandle compiled;     // (Object[]) Object, once compiled
+
+        Tier(Resolver.FunLayout layout) {
+            this.layout = layout;
+        }
+    }
+
+    private final Map<DFun, Tier> tiers = new IdentityHashMap<DFun, Tier>();
+
+    /* Tier of the function being interpreted. */
+    private Tier current;
+
+    private final TypeChecker checker;
+    private final Input in;
+    private final Output out;
+    private final int threshold;
+    private int units;
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tier compiler");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public TieredInterpreter(TypeChecker checker, Input in, Output out, boolean memoize) {
+        this(checker, in, out, memoize, System.err);
+    }
+
+    public TieredInterpreter(TypeChecker checker, Input in, Output out, boolean memoize,
+                             PrintStream err) {
+        this(checker, in, out, memoize, err, DEFAULT_THRESHOLD);
+    }
+
+    public TieredInterpreter(TypeChecker checker, Input in, Output out, boolean memoize,
+                             PrintStream err, int threshold) {
+        super(in, out, memoize, err);
+        this.checker = checker;
+        this.in = in;
+        this.out = out;
+        this.threshold = threshold;
+        this.stmVisitor = new TieredStmVisitor();
+    }
+
+    public void interpret(Program p) {
+        try {
+            super.interpret(p);
+        } finally {
+            background.shutdownNow();
+        }
+    }
+
+    protected Value call(Resolver.FunLayout callee, Value[] frame) {
+        Tier t = tiers.get(callee.fun);
+        if (t == null) {
+            t = new Tier(callee);
+            tiers.put(callee.fun, t);
+        }
+        MethodHandle compiled = t.compiled;
+        if (compiled != null) return invoke(compiled, callee, frame);
+
+        if (++t.count >= threshold && !t.queued) tierUp(t);
+        Tier caller = current;
+        current = t;
+        try {
+            return super.call(callee, frame);
+        } finally {
+            current = caller;
+        }
+    }
+
+    /* Counts loop iterations towards the enclosing function's threshold. */
+    public class TieredStmVisitor extends StmVisitor {
+        public Value visit(CPP.Absyn.SWhile p, RuntimeEnv env)
+        {
+            Tier t = current;
+            while (true) {
+                VBool condition = (VBool) p.exp_.accept(expVisitor, env);
+                if (!condition.value) return null;
+                if (++t.count >= threshold && !t.queued) tierUp(t);
+                Value v = p.stm_.accept(stmVisitor, env);
+                if (v != null) return v;
+            }
+        }
+    }
+
+    ///////////////////////////// Compilation /////////////////////////////
+
+    /* Queues the function and everything it calls for compilation. */
+    private void tierUp(Tier hot) {
+        final List<Tier> unit = new ArrayList<Tier>();
+        Set<DFun> seen = Collections.newSetFromMap(new IdentityHashMap<DFun, Boolean>());
+        Deque<Resolver.FunLayout> work = new ArrayDeque<Resolver.FunLayout>();
+        work.push(hot.layout);
+        seen.add(hot.layout.fun);
+        while (!work.isEmpty()) {
+            Resolver.FunLayout f = work.pop();
+            Tier t = tiers.get(f.fun);
+            if (t == null) {
+                t = new Tier(f);
+                tiers.put(f.fun, t);
+            }
+            t.queued = true;
+            unit.add(t);
+            for (Resolver.CallSite site : f.calls)
+                if (site.callee != null && seen.add(site.callee.fun))
+                    work.push(site.callee);
+        }
+
+        final String name = "Tier" + ++units;
+        /* execute, not submit: a failure must not be kept in a Future that
+         * nobody reads. */
+        background.execute(new Runnable() {
+            public void run() {
+                compile(name, unit);
+            }
+        });
+    }
+
+    /* Runs on the background thread; only publishes the compiled handles. */
+    private void compile(String name, List<Tier> unit) {
+        try {
+            ListDef defs = new ListDef();
+            for (Tier t : unit)
+                defs.add(t.layout.fun);
+            Class<?> c = new JvmCompiler(checker, in, out).load(name, new PDefs(defs));
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            for (Tier t : unit) {
+                DFun f = t.layout.fun;
+                Class<?>[] params = new Class<?>[f.listarg_.size()];
+                int i = 0;
+                for (Arg a : f.listarg_)
+                    params[i++] = javaType(((ADecl) a).type_);
+                MethodHandle h = lookup.findStatic(c, f.id_, MethodType.methodType(javaType(f.type_), params));
+                t.compiled = h.asSpreader(Object[].class, params.length)
+                              .asType(MethodType.methodType(Object.class, Object[].class));
+            }
+        } catch (RuntimeException | ReflectiveOperationException e) {
+            /* Not compilable, e.g. a construct the compiler lacks: stay interpreted. */
+            err.println("tier: " + names(unit) + " stay interpreted: " + e);
+        } catch (Error e) {
+            /* E.g. a VerifyError of the compiled class: a fault of lab2, as
+             * under -j, though the program goes on interpreted. */
+            err.println("INTERNAL ERROR");
+            err.println("tier: " + names(unit) + " stay interpreted");
+            e.printStackTrace(err);
+        }
+    }
+
+    /* The functions of a compilation unit, for reports. */
+    private static String names(List<Tier> unit) {
+        StringBuilder s = new StringBuilder();
+        for (Tier t : unit)
+            s.append(s.length() == 0 ? "" : ", ").append(t.layout.fun.id_);
+        return s.toString();
+    }
+
+    /* Calls the compiled method with the arguments bound in frame. */
+    private static Value invoke(MethodHandle compiled, Resolver.FunLayout callee, Value[] frame) {
+        Object[] args = new Object[callee.paramSlots.length];
+        int i = 0;
+        for (Arg a : callee.fun.listarg_) {
+            args[i] = toJava(frame[callee.paramSlots[i]], ((ADecl) a).type_);
+            i++;
+        }
+        Object result;
+        try {
+            result = (Object) compiled.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+
+        Type t = callee.fun.type_;
+        if (t instanceof Type_int) return new VInt((Integer) result);
+        if (t instanceof Type_double) return new VDouble((Double) result);
+        if (t instanceof Type_bool) return VBool.of((Boolean) result);
+        return new VVoid();
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private static Object toJava(Value v, Type t) {
+        if (t instanceof Type_int) return ((VInt) v).value;
+        if (t instanceof Type_double) return ((VDouble) v).value;
+        return ((VBool) v).value;
+    }
+
+    private static Class<?> javaType(Type t) {
+        if (t instanceof Type_int) return int.class;
+        if (t instanceof Type_double) return double.class;
+        if (t instanceof Type_bool) return boolean.class;
+        return void.class;
+    }
+}
@@ -2,9 +2,13 @@ import CPP.Absyn.*;
 import java.util.*;
 
 
+/* Each call of typecheck uses a fresh Env and forgets the types of the
+ * program checked before, so a TypeChecker can check several programs in
+ * turn, typeOf describing the last one, and separate TypeCheckers can run
+ * on separate threads. A single TypeChecker is not safe to share. */
 public class TypeChecker {
 
-    private Env env = new Env(); // Environment for type checking
+    private Env env; // Environment of the program being checked
 
     public final Type BOOL   = new Type_bool();
     public final Type INT    = new Type_int();
@@ -14,10 +18,30 @@ public class TypeChecker {
     private final StmVisitor stmVisitor = new StmVisitor();
     private final ExpVisitor expVisitor = new ExpVisitor();
 
+    /* Type inferred for every expression of the last program checked, for
+     * the backends to specialize on. */
+    private final Map<Exp, Type> types;
+
+    public TypeChecker() {
+        this(new IdentityHashMap<Exp, Type>());
+    }
+
+    /* A checker that has already checked a program and inferred these
+     * types for its expressions, as restored by AstCache. */
+    TypeChecker(Map<Exp, Type> types) {
+        this.types = types;
+    }
+
     public void typecheck(Program p) {
+        env = new Env();
+        types.clear();
         p.accept(new ProgramVisitor(), env);
     }
 
+    public Type typeOf(Exp e) {
+        return types.get(e);
+    }
+
     ////////////////////////////// Program //////////////////////////////
 
     public class ProgramVisitor implements Program.Visitor<Void, Env> {
@@ -98,7 +122,7 @@ public class TypeChecker {
 
     public class StmVisitor implements Stm.Visitor<Void, Env> {
         public Void visit(CPP.Absyn.SExp p, Env env) {
-            Type t = p.exp_.accept(expVisitor, env);
+            Type t = infer(p.exp_);
             return null;
         }
 
@@ -223,29 +247,29 @@ public class TypeChecker {
         // Arithmetical operators
         public Type visit(CPP.Absyn.ETimes p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return t1;
         }
         public Type visit(CPP.Absyn.EDiv p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return t1;
         }
         public Type visit(CPP.Absyn.EPlus p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return t1;
         }
         public Type visit(CPP.Absyn.EMinus p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return t1;
         }
@@ -253,29 +277,29 @@ public class TypeChecker {
         // Comparison operators
         public Type visit(CPP.Absyn.ELt p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return BOOL;
         }
         public Type visit(CPP.Absyn.EGt p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return BOOL;
         }
         public Type visit(CPP.Absyn.ELtEq p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return BOOL;
         }
         public Type visit(CPP.Absyn.EGtEq p, Env env)
         {
-            Type t1 = numericType(p.exp_1.accept(expVisitor, env));
-            Type t2 = numericType(p.exp_2.accept(expVisitor, env));
+            Type t1 = numericType(infer(p.exp_1));
+            Type t2 = numericType(infer(p.exp_2));
             equalTypes(t1, t2);
             return BOOL;
         }
@@ -283,16 +307,16 @@ public class TypeChecker {
         // Equality operators
         public Type visit(CPP.Absyn.EEq p, Env env)
         {
-            Type t1 = p.exp_1.accept(expVisitor, env);
-            Type t2 = p.exp_2.accept(expVisitor, env);
+            Type t1 = infer(p.exp_1);
+            Type t2 = infer(p.exp_2);
             numericOrBoolType(t1);
             equalTypes(t1, t2);
             return BOOL;
         }
         public Type visit(CPP.Absyn.ENEq p, Env env)
         {
-            Type t1 = p.exp_1.accept(expVisitor, env);
-            Type t2 = p.exp_2.accept(expVisitor, env);
+            Type t1 = infer(p.exp_1);
+            Type t2 = infer(p.exp_2);
             numericOrBoolType(t1);
             equalTypes(t1, t2);
             return BOOL;
@@ -301,14 +325,14 @@ public class TypeChecker {
         // Logic operators
         public Type visit(CPP.Absyn.EAnd p, Env env)
         {
-            boolType(p.exp_1.accept(expVisitor, env));
-            boolType(p.exp_2.accept(expVisitor, env));
+            boolType(infer(p.exp_1));
+            boolType(infer(p.exp_2));
             return BOOL;
         }
         public Type visit(CPP.Absyn.EOr p, Env env)
         {
-            boolType(p.exp_1.accept(expVisitor, env));
-            boolType(p.exp_2.accept(expVisitor, env));
+            boolType(infer(p.exp_1));
+            boolType(infer(p.exp_2));
             return BOOL;
         }
 
@@ -316,7 +340,7 @@ public class TypeChecker {
         public Type visit(CPP.Absyn.EAss p, Env env)
         {
             Type id_type = env.lookupVar(p.id_);
-            Type exp_type = p.exp_.accept(expVisitor, env);
+            Type exp_type = infer(p.exp_);
             equalTypes(id_type, exp_type);
             return id_type;
         }
@@ -330,8 +354,13 @@ public class TypeChecker {
         l.add(new ADecl(t, "dummy"));
         return l;
     }
+    public Type infer (Exp e) {
+        Type t = e.accept (expVisitor, env);
+        types.put(e, t);
+        return t;
+    }
     public void checkExpr (Exp e, Type t) {
-        Type t1 = e.accept (expVisitor, env);
+        Type t1 = infer(e);
         check(t,t1);
     }
     public void check (Type t, Type u) {
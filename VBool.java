@@ -1,6 +1,10 @@
 public class VBool extends Value {
+  public static final VBool TRUE  = new VBool(true);
+  public static final VBool FALSE = new VBool(false);
+
   public final boolean value;
-  public VBool (boolean d) { value = d; }
+  private VBool (boolean d) { value = d; }
+  public static VBool of (boolean d) { return d ? TRUE : FALSE; }
   public boolean equals(Object o) {
     return (o instanceof VBool) && this.value == (((VBool)o).value);
   }
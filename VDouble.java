@@ -1,7 +1,8 @@
 public class VDouble extends Value {
-  public final Double value;
-  public VDouble (Double d) { value = d; }
+  public final double value;
+  public VDouble (double d) { value = d; }
   public boolean equals(Object o) {
-    return (o instanceof VDouble) && this.value.equals(((VDouble)o).value);
+    /* Same as Double.equals: NaN equals itself, 0.0 differs from -0.0. */
+    return (o instanceof VDouble) && Double.compare(this.value, ((VDouble)o).value) == 0;
   }
 }
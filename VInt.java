@@ -1,7 +1,7 @@
 public class VInt extends Value {
-  public final Integer value;
-  public VInt (Integer i) { value = i; }
+  public final int value;
+  public VInt (int i) { value = i; }
   public boolean equals(Object o) {
-    return (o instanceof VInt) && this.value.equals(((VInt)o).value);
+    return (o instanceof VInt) && this.value == ((VInt)o).value;
   }
 }
@@ -0,0 +1,268 @@
+import java.util.*;
+
+/* Register machine executing the bytecode produced by VMCompiler.
+ *
+ * Every function has a fixed number of registers: the Resolver's frame
+ * slots first, followed by temporaries. Each register has an int half
+ * (ints and bools) and a double half; an instruction knows which one it
+ * uses. Instructions are an opcode followed by its operands, all stored
+ * in one int[] per function.
+ *
+ * Calls do not recurse in Java. The registers of all active functions
+ * live on one heap-allocated register stack, addressed relative to the
+ * base of the current frame, and return addresses live on a separate
+ * control stack. Both grow on demand up to a configurable memory budget,
+ * so recursion depth is bounded by that budget, not the Java stack. */
+public class VM {
+
+    // Opcodes.                       Operands
+    static final int ICONST  =  0; // dst imm
+    static final int DCONST  =  1; // dst k        (constant pool index)
+    static final int IMOV    =  2; // dst src
+    static final int DMOV    =  3; // dst src
+    static final int IADD    =  4; // dst a b
+    static final int ISUB    =  5;
+    static final int IMUL    =  6;
+    static final int IDIV    =  7;
+    static final int DADD    =  8;
+    static final int DSUB    =  9;
+    static final int DMUL    = 10;
+    static final int DDIV    = 11;
+    static final int ILT     = 12; // dst a b      (dst = a < b ? 1 : 0)
+    static final int IGT     = 13;
+    static final int ILE     = 14;
+    static final int IGE     = 15;
+    static final int IEQ     = 16;
+    static final int INE     = 17;
+    static final int DLT     = 18;
+    static final int DGT     = 19;
+    static final int DLE     = 20;
+    static final int DGE     = 21;
+    static final int DEQ     = 22;
+    static final int DNE     = 23;
+    static final int JMP     = 24; // target
+    static final int JZ      = 25; // cond target
+    static final int JNZ     = 26; // cond target
+    static final int CALL    = 27; // fun args dst (arguments in consecutive registers)
+    static final int RETV    = 28; // src
+    static final int RET     = 29; //
+    static final int PRINTI  = 30; // src
+    static final int PRINTD  = 31; // src
+    static final int READI   = 32; // dst
+    static final int READD   = 33; // dst
+
+    // Superinstructions.
+    static final int IBLT    = 34; // a b target   (jump if a < b)
+    static final int IBGT    = 35;
+    static final int IBLE    = 36;
+    static final int IBGE    = 37;
+    static final int IBEQ    = 38;
+    static final int IBNE    = 39;
+    static final int IINC    = 40; // reg imm
+    static final int DINC    = 41; // reg imm
+
+    /* Compiled function. */
+    public static class Function {
+        final int index;
+        final String name;
+        final int params;
+        int registers;
+        int[] code;
+
+        Function(int index, String name, int params) {
+            this.index = index;
+            this.name = name;
+            this.params = params;
+        }
+    }
+
+    /* Default memory budget of the register and control stacks. */
+    public static final int DEFAULT_STACK_MB = 64;
+
+    /* Each register takes an int and a double, each control record 3 ints. */
+    private static final int REGISTER_BYTES = 12;
+    private static final int RECORD_BYTES   = 12;
+
+    private final Function[] funs;
+    private final double[] constants;
+    private final int main;
+    private final long stackBytes;
+
+    /* Register stack and control stack (function, call pc, caller base). */
+    private int[] ir = new int[1024];
+    private double[] dr = new double[1024];
+    private int[] ctrl = new int[3 * 256];
+
+    /* Return value of the most recently returned function. */
+    private int iret;
+    private double dret;
+
+    private final Input in;
+    private final Output out;
+
+    public VM(Function[] funs, double[] constants, int main) {
+        this(funs, constants, main, DEFAULT_STACK_MB);
+    }
+
+    public VM(Function[] funs, double[] constants, int main, int stackMB) {
+        this(funs, constants, main, stackMB, new Input(System.in), new Output(System.out));
+    }
+
+    public VM(Function[] funs, double[] constants, int main, int stackMB, Input in, Output out) {
+        this.funs = funs;
+        this.constants = constants;
+        this.main = main;
+        this.stackBytes = stackMB * 1024L * 1024L;
+        this.in = in;
+        this.out = out;
+    }
+
+    public void run() {
+        try {
+            execute();
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void execute() {
+        Function fun = funs[main];
+        ensureStack(fun.registers, 0);
+
+        int[] ir = this.ir;
+        double[] dr = this.dr;
+        int[] code = fun.code;
+        int pc = 0;
+        int bp = 0;                 // base of the current frame
+        int sp = fun.registers;     // top of the register stack
+        int fp = 0;                 // top of the control stack
+
+        while (true) {
+            switch (code[pc]) {
+                case ICONST: ir[bp+code[pc+1]] = code[pc+2]; pc += 3; break;
+                case DCONST: dr[bp+code[pc+1]] = constants[code[pc+2]]; pc += 3; break;
+                case IMOV:   ir[bp+code[pc+1]] = ir[bp+code[pc+2]]; pc += 3; break;
+                case DMOV:   dr[bp+code[pc+1]] = dr[bp+code[pc+2]]; pc += 3; break;
+
+                case IADD: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] + ir[bp+code[pc+3]]; pc += 4; break;
+                case ISUB: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] - ir[bp+code[pc+3]]; pc += 4; break;
+                case IMUL: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] * ir[bp+code[pc+3]]; pc += 4; break;
+                case IDIV: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] / ir[bp+code[pc+3]]; pc += 4; break;
+                case DADD: dr[bp+code[pc+1]] = dr[bp+code[pc+2]] + dr[bp+code[pc+3]]; pc += 4; break;
+                case DSUB: dr[bp+code[pc+1]] = dr[bp+code[pc+2]] - dr[bp+code[pc+3]]; pc += 4; break;
+                case DMUL: dr[bp+code[pc+1]] = dr[bp+code[pc+2]] * dr[bp+code[pc+3]]; pc += 4; break;
+                case DDIV: dr[bp+code[pc+1]] = dr[bp+code[pc+2]] / dr[bp+code[pc+3]]; pc += 4; break;
+
+                case ILT: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] <  ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case IGT: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] >  ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case ILE: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] <= ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case IGE: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] >= ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case IEQ: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] == ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case INE: ir[bp+code[pc+1]] = ir[bp+code[pc+2]] != ir[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case DLT: ir[bp+code[pc+1]] = dr[bp+code[pc+2]] <  dr[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case DGT: ir[bp+code[pc+1]] = dr[bp+code[pc+2]] >  dr[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case DLE: ir[bp+code[pc+1]] = dr[bp+code[pc+2]] <= dr[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                case DGE: ir[bp+code[pc+1]] = dr[bp+code[pc+2]] >= dr[bp+code[pc+3]] ? 1 : 0; pc += 4; break;
+                /* Same as Double.equals, which the interpreter uses. */
+                case DEQ: ir[bp+code[pc+1]] = Double.compare(dr[bp+code[pc+2]], dr[bp+code[pc+3]]) == 0 ? 1 : 0; pc += 4; break;
+                case DNE: ir[bp+code[pc+1]] = Double.compare(dr[bp+code[pc+2]], dr[bp+code[pc+3]]) != 0 ? 1 : 0; pc += 4; break;
+
+                case JMP: pc = code[pc+1]; break;
+                case JZ:  pc = ir[bp+code[pc+1]] == 0 ? code[pc+2] : pc + 3; break;
+                case JNZ: pc = ir[bp+code[pc+1]] != 0 ? code[pc+2] : pc + 3; break;
+
+                case IBLT: pc = ir[bp+code[pc+1]] <  ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+                case IBGT: pc = ir[bp+code[pc+1]] >  ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+                case IBLE: pc = ir[bp+code[pc+1]] <= ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+                case IBGE: pc = ir[bp+code[pc+1]] >= ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+                case IBEQ: pc = ir[bp+code[pc+1]] == ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+                case IBNE: pc = ir[bp+code[pc+1]] != ir[bp+code[pc+2]] ? code[pc+3] : pc + 4; break;
+
+                case IINC: ir[bp+code[pc+1]] += code[pc+2]; pc += 3; break;
+                case DINC: dr[bp+code[pc+1]] += code[pc+2]; pc += 3; break;
+
+                case CALL: {
+                    Function callee = funs[code[pc+1]];
+                    int args = bp + code[pc+2];
+                    int nsp = sp + callee.registers;
+                    if (nsp > ir.length || fp + 3 > ctrl.length) {
+                        ensureStack(nsp, fp + 3);
+                        ir = this.ir;
+                        dr = this.dr;
+                    }
+
+                    /* Parameters are the first registers of the callee. */
+                    System.arraycopy(ir, args, ir, sp, callee.params);
+                    System.arraycopy(dr, args, dr, sp, callee.params);
+                    Arrays.fill(ir, sp + callee.params, nsp, 0);
+                    Arrays.fill(dr, sp + callee.params, nsp, 0.0);
+
+                    ctrl[fp]   = fun.index;
+                    ctrl[fp+1] = pc;
+                    ctrl[fp+2] = bp;
+                    fp += 3;
+
+                    fun = callee;
+                    code = fun.code;
+                    pc = 0;
+                    bp = sp;
+                    sp = nsp;
+                    break;
+                }
+                case RETV:
+                    iret = ir[bp+code[pc+1]];
+                    dret = dr[bp+code[pc+1]];
+                    // fall through
+                case RET: {
+                    if (fp == 0) return;
+                    fp -= 3;
+                    sp = bp;
+                    fun = funs[ctrl[fp]];
+                    code = fun.code;
+                    pc = ctrl[fp+1];
+                    bp = ctrl[fp+2];
+
+                    /* Resume after the call, storing its result. */
+                    ir[bp+code[pc+3]] = iret;
+                    dr[bp+code[pc+3]] = dret;
+                    pc += 4;
+                    break;
+                }
+
+                case PRINTI: out.printInt(ir[bp+code[pc+1]]); pc += 2; break;
+                case PRINTD: out.printDouble(dr[bp+code[pc+1]]); pc += 2; break;
+                case READI:  ir[bp+code[pc+1]] = in.readInt(); pc += 2; break;
+                case READD:  dr[bp+code[pc+1]] = in.readDouble(); pc += 2; break;
+
+                default:
+                    throw new RuntimeException("Impossible: bad opcode " + code[pc] + " in " + fun.name);
+            }
+        }
+    }
+
+    /* Grows the register and control stacks to hold the given number of
+     * registers and control ints, within the memory budget. Growth doubles
+     * an array, but never past what the budget leaves beside the other. */
+    private void ensureStack(int registers, int records) {
+        if ((long) registers * REGISTER_BYTES + (long) records / 3 * RECORD_BYTES > stackBytes)
+            throw new RuntimeException("Stack overflow: recursion exceeds the "
+                                       + stackBytes / (1024 * 1024) + " MB stack budget");
+        if (registers > ir.length) {
+            long room = (stackBytes - (long) ctrl.length / 3 * RECORD_BYTES) / REGISTER_BYTES;
+            int n = grown(ir.length, registers, room);
+            ir = Arrays.copyOf(ir, n);
+            dr = Arrays.copyOf(dr, n);
+        }
+        if (records > ctrl.length) {
+            long room = (stackBytes - (long) ir.length * REGISTER_BYTES) / RECORD_BYTES * 3;
+            ctrl = Arrays.copyOf(ctrl, grown(ctrl.length, records, room));
+        }
+    }
+
+    /* The new length of an array of the given length that must hold
+     * needed elements, doubling it as far as room allows. */
+    private static int grown(int length, int needed, long room) {
+        long n = Math.min(Math.min(2L * length, room), Integer.MAX_VALUE - 8);
+        return (int) Math.max(n, needed);
+    }
+}
@@ -0,0 +1,476 @@
+import CPP.Absyn.*;
+import java.util.*;
+
+/* Lowers a type checked program to register bytecode for the VM. */
+public class VMCompiler {
+
+    private final TypeChecker checker;
+    private final Resolver resolver = new Resolver();
+    private final TailCalls tailCalls = new TailCalls();
+
+    private final Map<String, Integer> funIndex = new HashMap<String, Integer>();
+    private VM.Function[] funs;
+
+    private final List<Double> constants = new ArrayList<Double>();
+    private final Map<Double, Integer> constantIndex = new HashMap<Double, Integer>();
+
+    // Function being compiled, its code and its next free temporary.
+    private VM.Function current;
+    private int frameSize;
+    private int[] code;
+    private int size;
+    private int temps;
+
+    private final StmVisitor stmVisitor = new StmVisitor();
+    private final ExpVisitor expVisitor = new ExpVisitor();
+    private final AssignsVisitor assignsVisitor = new AssignsVisitor();
+
+    private final int stackMB;
+    private final Input in;
+    private final Output out;
+
+    public VMCompiler(TypeChecker checker) {
+        this(checker, VM.DEFAULT_STACK_MB);
+    }
+
+    public VMCompiler(TypeChecker checker, int stackMB) {
+        this(checker, stackMB, new Input(System.in), new Output(System.out));
+    }
+
+    public VMCompiler(TypeChecker checker, int stackMB, Input in, Output out) {
+        this.checker = checker;
+        this.stackMB = stackMB;
+        this.in = in;
+        this.out = out;
+    }
+
+    public VM compile(Program p) {
+        resolver.resolve(p);
+        tailCalls.analyse(p);
+
+        ListDef defs = ((PDefs) p).listdef_;
+        funs = new VM.Function[defs.size()];
+        int i = 0;
+        for (Def d: defs) {
+            DFun f = (DFun) d;
+            funIndex.put(f.id_, i);
+            funs[i] = new VM.Function(i, f.id_, f.listarg_.size());
+            i++;
+        }
+        for (Def d: defs)
+            d.accept(new DefVisitor(), null);
+
+        double[] pool = new double[constants.size()];
+        for (i = 0; i < pool.length; i++)
+            pool[i] = constants.get(i);
+        return new VM(funs, pool, funIndex.get("main"), stackMB, in, out);
+    }
+
+    ///////////////////////////// Function //////////////////////////////
+
+    public class DefVisitor implements Def.Visitor<Void, Void> {
+        public Void visit(CPP.Absyn.DFun p, Void arg) {
+            current = funs[funIndex.get(p.id_)];
+            frameSize = resolver.layout(p.id_).frameSize;
+            current.registers = frameSize;
+            code = new int[64];
+            size = 0;
+
+            for (Stm s: p.liststm_)
+                s.accept(stmVisitor, null);
+
+            /* Falling off the end of a function returns nothing. */
+            emit(VM.RET);
+            current.code = Arrays.copyOf(code, size);
+            return null;
+        }
+    }
+
+    ////////////////////////////// Statement //////////////////////////////
+
+    public class StmVisitor implements Stm.Visitor<Void, Void> {
+        public Void visit(CPP.Absyn.SExp p, Void arg) {
+            temps = frameSize;
+            Exp e = p.exp_;
+
+            /* A discarded increment needs no copy of the old value. */
+            if (e instanceof EPostIncr || e instanceof EPreIncr)
+                emitIncr(resolver.slot(e), isDouble(e), 1);
+            else if (e instanceof EPostDecr || e instanceof EPreDecr)
+                emitIncr(resolver.slot(e), isDouble(e), -1);
+            else
+                compile(e, null);
+            return null;
+        }
+
+        /* Declared variables start out as zero, as in the other engines. */
+        public Void visit(CPP.Absyn.SDecls p, Void arg) {
+            for (int slot: resolver.slots(p)) {
+                if (p.type_ instanceof Type_double)
+                    emit(VM.DCONST, slot, constant(0.0));
+                else
+                    emit(VM.ICONST, slot, 0);
+            }
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SInit p, Void arg) {
+            temps = frameSize;
+            assign(resolver.slot(p), p.exp_);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SReturn p, Void arg) {
+            temps = frameSize;
+            if (tailCalls.isSelfTailCall(p)) {
+                /* Rebind the parameters and jump back to the entry. */
+                EApp call = (EApp) p.exp_;
+                int args = temps;
+                for (int i = 0; i < call.listexp_.size(); i++)
+                    temp();
+                int i = 0;
+                for (Exp e: call.listexp_)
+                    compile(e, args + i++);
+                i = 0;
+                for (Exp e: call.listexp_) {
+                    emit(isDouble(e) ? VM.DMOV : VM.IMOV, i, args + i);
+                    i++;
+                }
+                emit(VM.JMP, 0);
+                return null;
+            }
+            int r = compile(p.exp_, null);
+            Type t = checker.typeOf(p.exp_);
+            /* The caller picks the int or double half of the result. */
+            if (t instanceof Type_void)
+                emit(VM.RET);
+            else
+                emit(VM.RETV, r);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SWhile p, Void arg) {
+            temps = frameSize;
+            int start = size;
+            int exit = branchIfFalse(p.exp_);
+            p.stm_.accept(stmVisitor, null);
+            emit(VM.JMP, start);
+            patch(exit, size);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SBlock p, Void arg) {
+            for (Stm s: p.liststm_)
+                s.accept(stmVisitor, null);
+            return null;
+        }
+
+        public Void visit(CPP.Absyn.SIfElse p, Void arg) {
+            temps = frameSize;
+            int f = branchIfFalse(p.exp_);
+            p.stm_1.accept(stmVisitor, null);
+            emit(VM.JMP, -1);
+            int done = size - 1;
+            patch(f, size);
+            p.stm_2.accept(stmVisitor, null);
+            patch(done, size);
+            return null;
+        }
+    }
+
+    ////////////////////////////// Expression //////////////////////////////
+
+    /* Compiles an expression into register dst, or into any register if
+     * dst is null, and returns the register holding the result. */
+    public class ExpVisitor implements Exp.Visitor<Integer, Integer> {
+
+        public Integer visit(CPP.Absyn.ETrue p, Integer dst) {
+            int r = target(dst);
+            emit(VM.ICONST, r, 1);
+            return r;
+        }
+        public Integer visit(CPP.Absyn.EFalse p, Integer dst) {
+            int r = target(dst);
+            emit(VM.ICONST, r, 0);
+            return r;
+        }
+        public Integer visit(CPP.Absyn.EInt p, Integer dst) {
+            int r = target(dst);
+            emit(VM.ICONST, r, p.integer_);
+            return r;
+        }
+        public Integer visit(CPP.Absyn.EDouble p, Integer dst) {
+            int r = target(dst);
+            emit(VM.DCONST, r, constant(p.double_));
+            return r;
+        }
+
+        public Integer visit(CPP.Absyn.EId p, Integer dst) {
+            int slot = resolver.slot(p);
+            if (dst == null)
+                return slot;
+            emit(isDouble(p) ? VM.DMOV : VM.IMOV, dst, slot);
+            return dst;
+        }
+
+        public Integer visit(CPP.Absyn.EApp p, Integer dst) {
+            Builtin builtin = resolver.call(p).builtin;
+            if (builtin != null) {
+                switch (builtin) {
+                    case PrintInt:
+                        emit(VM.PRINTI, compile(p.listexp_.getFirst(), null));
+                        return dst == null ? 0 : dst;
+                    case PrintDouble:
+                        emit(VM.PRINTD, compile(p.listexp_.getFirst(), null));
+                        return dst == null ? 0 : dst;
+                    case ReadInt: {
+                        int r = target(dst);
+                        emit(VM.READI, r);
+                        return r;
+                    }
+                    case ReadDouble: {
+                        int r = target(dst);
+                        emit(VM.READD, r);
+                        return r;
+                    }
+                }
+            }
+
+            /* Arguments go to consecutive temporaries. */
+            int args = temps;
+            for (int i = 0; i < p.listexp_.size(); i++)
+                temp();
+            int i = 0;
+            for (Exp e: p.listexp_)
+                compile(e, args + i++);
+            int r = target(dst);
+            emit(VM.CALL, funIndex.get(p.id_), args, r);
+            return r;
+        }
+
+        public Integer visit(CPP.Absyn.EPostIncr p, Integer dst) {
+            return postIncr(p, dst, 1);
+        }
+        public Integer visit(CPP.Absyn.EPostDecr p, Integer dst) {
+            return postIncr(p, dst, -1);
+        }
+        public Integer visit(CPP.Absyn.EPreIncr p, Integer dst) {
+            return preIncr(p, dst, 1);
+        }
+        public Integer visit(CPP.Absyn.EPreDecr p, Integer dst) {
+            return preIncr(p, dst, -1);
+        }
+
+        public Integer visit(CPP.Absyn.ETimes p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p) ? VM.DMUL : VM.IMUL);
+        }
+        public Integer visit(CPP.Absyn.EDiv p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p) ? VM.DDIV : VM.IDIV);
+        }
+        public Integer visit(CPP.Absyn.EPlus p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p) ? VM.DADD : VM.IADD);
+        }
+        public Integer visit(CPP.Absyn.EMinus p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p) ? VM.DSUB : VM.ISUB);
+        }
+
+        public Integer visit(CPP.Absyn.ELt p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DLT : VM.ILT);
+        }
+        public Integer visit(CPP.Absyn.EGt p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DGT : VM.IGT);
+        }
+        public Integer visit(CPP.Absyn.ELtEq p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DLE : VM.ILE);
+        }
+        public Integer visit(CPP.Absyn.EGtEq p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DGE : VM.IGE);
+        }
+        public Integer visit(CPP.Absyn.EEq p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DEQ : VM.IEQ);
+        }
+        public Integer visit(CPP.Absyn.ENEq p, Integer dst) {
+            return binary(p.exp_1, p.exp_2, dst, isDouble(p.exp_1) ? VM.DNE : VM.INE);
+        }
+
+        public Integer visit(CPP.Absyn.EAnd p, Integer dst) {
+            return shortCircuit(p.exp_1, p.exp_2, dst, VM.JZ);
+        }
+        public Integer visit(CPP.Absyn.EOr p, Integer dst) {
+            return shortCircuit(p.exp_1, p.exp_2, dst, VM.JNZ);
+        }
+
+        public Integer visit(CPP.Absyn.EAss p, Integer dst) {
+            int slot = resolver.slot(p);
+            assign(slot, p.exp_);
+            if (dst == null)
+                return slot;
+            emit(isDouble(p) ? VM.DMOV : VM.IMOV, dst, slot);
+            return dst;
+        }
+
+        private int binary(Exp e1, Exp e2, Integer dst, int op) {
+            /* The left operand must not see writes made by the right one. */
+            int a = assigns(e2) ? compile(e1, temp()) : compile(e1, null);
+            int b = compile(e2, null);
+            int r = target(dst);
+            emit(op, r, a, b);
+            return r;
+        }
+
+        private int shortCircuit(Exp e1, Exp e2, Integer dst, int jump) {
+            /* The result is written before e2 runs, so it cannot be a variable e2 may read. */
+            int r = dst == null || dst < frameSize ? temp() : dst;
+            compile(e1, r);
+            emit(jump, r, -1);
+            int done = size - 1;
+            compile(e2, r);
+            patch(done, size);
+            if (dst != null && dst != r)
+                emit(VM.IMOV, dst, r);
+            return dst == null ? r : dst;
+        }
+
+        private int postIncr(Exp p, Integer dst, int delta) {
+            int slot = resolver.slot(p);
+            boolean d = isDouble(p);
+            int r = dst == null || dst == slot ? temp() : dst;
+            emit(d ? VM.DMOV : VM.IMOV, r, slot);
+            emitIncr(slot, d, delta);
+            if (dst != null && dst != r)
+                emit(d ? VM.DMOV : VM.IMOV, dst, r);
+            return dst == null ? r : dst;
+        }
+
+        private int preIncr(Exp p, Integer dst, int delta) {
+            int slot = resolver.slot(p);
+            boolean d = isDouble(p);
+            emitIncr(slot, d, delta);
+            if (dst == null || dst == slot)
+                return slot;
+            emit(d ? VM.DMOV : VM.IMOV, dst, slot);
+            return dst;
+        }
+    }
+
+    /* Does evaluating the expression assign to any variable? */
+    public class AssignsVisitor implements Exp.Visitor<Boolean, Void> {
+        public Boolean visit(CPP.Absyn.ETrue p, Void arg)     { return false; }
+        public Boolean visit(CPP.Absyn.EFalse p, Void arg)    { return false; }
+        public Boolean visit(CPP.Absyn.EInt p, Void arg)      { return false; }
+        public Boolean visit(CPP.Absyn.EDouble p, Void arg)   { return false; }
+        public Boolean visit(CPP.Absyn.EId p, Void arg)       { return false; }
+        public Boolean visit(CPP.Absyn.EApp p, Void arg) {
+            for (Exp e: p.listexp_)
+                if (e.accept(this, null)) return true;
+            return false;
+        }
+        public Boolean visit(CPP.Absyn.EPostIncr p, Void arg) { return true; }
+        public Boolean visit(CPP.Absyn.EPostDecr p, Void arg) { return true; }
+        public Boolean visit(CPP.Absyn.EPreIncr p, Void arg)  { return true; }
+        public Boolean visit(CPP.Absyn.EPreDecr p, Void arg)  { return true; }
+        public Boolean visit(CPP.Absyn.ETimes p, Void arg) { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EDiv p, Void arg)   { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EPlus p, Void arg)  { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EMinus p, Void arg) { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.ELt p, Void arg)    { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EGt p, Void arg)    { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.ELtEq p, Void arg)  { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EGtEq p, Void arg)  { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EEq p, Void arg)    { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.ENEq p, Void arg)   { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EAnd p, Void arg)   { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EOr p, Void arg)    { return either(p.exp_1, p.exp_2); }
+        public Boolean visit(CPP.Absyn.EAss p, Void arg)      { return true; }
+
+        private Boolean either(Exp e1, Exp e2) {
+            return e1.accept(this, null) || e2.accept(this, null);
+        }
+    }
+
+    /////////////////////////// Utility functions /////////////////////////
+
+    private int compile(Exp e, Integer dst) {
+        return e.accept(expVisitor, dst);
+    }
+
+    private boolean assigns(Exp e) {
+        return e.accept(assignsVisitor, null);
+    }
+
+    /* x = e, evaluating e straight into x when that cannot be observed. */
+    private void assign(int slot, Exp e) {
+        if (assigns(e))
+            emit(isDouble(e) ? VM.DMOV : VM.IMOV, slot, compile(e, temp()));
+        else
+            compile(e, slot);
+    }
+
+    /* Emits a jump taken when the condition is false and returns the
+     * position of its target operand, or -1 if it is never taken. */
+    private int branchIfFalse(Exp e) {
+        if (e instanceof ETrue)
+            return -1;
+
+        int op = -1;
+        Exp e1 = null, e2 = null;
+        if      (e instanceof ELt)   { op = VM.IBGE; e1 = ((ELt) e).exp_1;   e2 = ((ELt) e).exp_2; }
+        else if (e instanceof EGt)   { op = VM.IBLE; e1 = ((EGt) e).exp_1;   e2 = ((EGt) e).exp_2; }
+        else if (e instanceof ELtEq) { op = VM.IBGT; e1 = ((ELtEq) e).exp_1; e2 = ((ELtEq) e).exp_2; }
+        else if (e instanceof EGtEq) { op = VM.IBLT; e1 = ((EGtEq) e).exp_1; e2 = ((EGtEq) e).exp_2; }
+        else if (e instanceof EEq)   { op = VM.IBNE; e1 = ((EEq) e).exp_1;   e2 = ((EEq) e).exp_2; }
+        else if (e instanceof ENEq)  { op = VM.IBEQ; e1 = ((ENEq) e).exp_1;  e2 = ((ENEq) e).exp_2; }
+
+        /* Compare-and-branch on ints; doubles keep the plain compare,
+         * since its negation is not a compare when NaN is involved. */
+        if (op != -1 && !isDouble(e1)) {
+            int a = assigns(e2) ? compile(e1, temp()) : compile(e1, null);
+            int b = compile(e2, null);
+            emit(op, a, b, -1);
+        } else {
+            emit(VM.JZ, compile(e, null), -1);
+        }
+        return size - 1;
+    }
+
+    private void emitIncr(int slot, boolean isDouble, int delta) {
+        emit(isDouble ? VM.DINC : VM.IINC, slot, delta);
+    }
+
+    private boolean isDouble(Exp e) {
+        return checker.typeOf(e) instanceof Type_double;
+    }
+
+    private int target(Integer dst) {
+        return dst == null ? temp() : dst;
+    }
+
+    private int temp() {
+        int r = temps++;
+        if (temps > current.registers)
+            current.registers = temps;
+        return r;
+    }
+
+    private int constant(double d) {
+        Integer k = constantIndex.get(d);
+        if (k == null) {
+            k = constants.size();
+            constants.add(d);
+            constantIndex.put(d, k);
+        }
+        return k;
+    }
+
+    private void emit(int... ops) {
+        if (size + ops.length > code.length)
+            code = Arrays.copyOf(code, 2 * code.length + ops.length);
+        for (int op: ops)
+            code[size++] = op;
+    }
+
+    private void patch(int at, int target) {
+        if (at >= 0)
+            code[at] = target;
+    }
+}
@@ -0,0 +1,129 @@
+import CPP.Absyn.*;
+
+/* Visits every statement and expression of a function body, in the
+ * order they are written, calling hooks that subclasses override. Each
+ * hook runs before the parts of its node are visited. */
+public class Walker implements Stm.Visitor<Void, Void>, Exp.Visitor<Void, Void>
+{
+    void statement(Stm s) {}
+    void expression(Exp e) {}
+
+    /* A variable assigned, incremented or decremented. */
+    void assigned(String x) {}
+
+    /* A variable declared without a value. */
+    void declared(String x) {}
+
+    public void walk(ListStm ss) {
+        for (Stm s : ss)
+            s.accept(this, null);
+    }
+
+    public void walk(Exp e) {
+        e.accept(this, null);
+    }
+
+    ///////////////////////////// Statements //////////////////////////////
+
+    public Void visit(CPP.Absyn.SExp p, Void arg)
+    {
+        statement(p);
+        walk(p.exp_);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SDecls p, Void arg)
+    {
+        statement(p);
+        for (String x : p.listid_)
+            declared(x);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SInit p, Void arg)
+    {
+        statement(p);
+        walk(p.exp_);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SReturn p, Void arg)
+    {
+        statement(p);
+        walk(p.exp_);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SWhile p, Void arg)
+    {
+        statement(p);
+        walk(p.exp_);
+        p.stm_.accept(this, null);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SBlock p, Void arg)
+    {
+        statement(p);
+        walk(p.liststm_);
+        return null;
+    }
+    public Void visit(CPP.Absyn.SIfElse p, Void arg)
+    {
+        statement(p);
+        walk(p.exp_);
+        p.stm_1.accept(this, null);
+        p.stm_2.accept(this, null);
+        return null;
+    }
+
+    ///////////////////////////// Expressions /////////////////////////////
+
+    public Void visit(CPP.Absyn.ETrue p, Void arg)   { expression(p); return null; }
+    public Void visit(CPP.Absyn.EFalse p, Void arg)  { expression(p); return null; }
+    public Void visit(CPP.Absyn.EInt p, Void arg)    { expression(p); return null; }
+    public Void visit(CPP.Absyn.EDouble p, Void arg) { expression(p); return null; }
+    public Void visit(CPP.Absyn.EId p, Void arg)     { expression(p); return null; }
+
+    public Void visit(CPP.Absyn.EApp p, Void arg)
+    {
+        expression(p);
+        for (Exp e : p.listexp_)
+            walk(e);
+        return null;
+    }
+
+    public Void visit(CPP.Absyn.EPostIncr p, Void arg) { return change(p, p.id_); }
+    public Void visit(CPP.Absyn.EPostDecr p, Void arg) { return change(p, p.id_); }
+    public Void visit(CPP.Absyn.EPreIncr p, Void arg)  { return change(p, p.id_); }
+    public Void visit(CPP.Absyn.EPreDecr p, Void arg)  { return change(p, p.id_); }
+
+    public Void visit(CPP.Absyn.ETimes p, Void arg) { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EDiv p, Void arg)   { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EPlus p, Void arg)  { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EMinus p, Void arg) { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.ELt p, Void arg)    { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EGt p, Void arg)    { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.ELtEq p, Void arg)  { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EGtEq p, Void arg)  { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EEq p, Void arg)    { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.ENEq p, Void arg)   { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EAnd p, Void arg)   { return both(p, p.exp_1, p.exp_2); }
+    public Void visit(CPP.Absyn.EOr p, Void arg)    { return both(p, p.exp_1, p.exp_2); }
+
+    public Void visit(CPP.Absyn.EAss p, Void arg)
+    {
+        expression(p);
+        assigned(p.id_);
+        walk(p.exp_);
+        return null;
+    }
+
+    private Void change(Exp p, String x) {
+        expression(p);
+        assigned(x);
+        return null;
+    }
+
+    private Void both(Exp p, Exp a, Exp b) {
+        expression(p);
+        walk(a);
+        walk(b);
+        return null;
+    }
+}
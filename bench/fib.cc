@@ -0,0 +1,8 @@
+// Naive recursion.
+int fib(int n) {
+  if (n < 2) return n; else return fib(n - 1) + fib(n - 2);
+}
+int main() {
+  printInt(fib(27));
+  return 0;
+}
@@ -0,0 +1,16 @@
+// Input heavy: sums a million numbers from bench/input.in, which
+// bench/run.sh generates.
+int main() {
+  int n = readInt();
+  int i = 0;
+  int s = 0;
+  double d = 0.0;
+  while (i < n) {
+    s = s + readInt();
+    d = d + readDouble();
+    i++;
+  }
+  printInt(s);
+  printDouble(d);
+  return 0;
+}
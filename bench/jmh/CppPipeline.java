@@ -0,0 +1,36 @@
+import CPP.*;
+import CPP.Absyn.*;
+import java.io.*;
+
+/* Pipeline of the CPP implementation in the repository root. */
+public class CppPipeline implements cppbench.TypedPipeline {
+
+    public int lex(String source) throws Exception {
+        Yylex l = new Yylex(new StringReader(source));
+        int n = 0;
+        while (l.next_token().sym != sym.EOF)
+            n++;
+        return n;
+    }
+
+    public Object parse(String source) throws Exception {
+        return new parser(new Yylex(new StringReader(source))).pProgram();
+    }
+
+    public Object typecheck(Object program) {
+        TypeChecker checker = new TypeChecker();
+        checker.typecheck((Program) program);
+        return checker;
+    }
+
+    /* Runs the visitor interpreter with no input and discarded output. */
+    public void interpret(Object program, String variant) {
+        Input in = new Input(InputStream.nullInputStream());
+        Output out = new Output(OutputStream.nullOutputStream());
+        new Interpreter(in, out).interpret((Program) program);
+    }
+
+    public String compile(Object program, Object checker) {
+        return new Compiler((TypeChecker) checker).compile("Bench", (Program) program);
+    }
+}
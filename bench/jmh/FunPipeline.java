@@ -0,0 +1,26 @@
+import Fun.*;
+import Fun.Absyn.*;
+import java.io.*;
+
+/* Pipeline of the functional interpreter in functional-interpreter/.
+ * Compiled and loaded apart from CppPipeline, since both languages have
+ * a default package class named Interpreter. */
+public class FunPipeline implements cppbench.Pipeline {
+
+    public int lex(String source) throws Exception {
+        Yylex l = new Yylex(new StringReader(source));
+        int n = 0;
+        while (l.next_token().sym != sym.EOF)
+            n++;
+        return n;
+    }
+
+    public Object parse(String source) throws Exception {
+        return new parser(new Yylex(new StringReader(source))).pProgram();
+    }
+
+    /* The interpreter prints the result on System.out. */
+    public void interpret(Object program, String variant) {
+        new Interpreter(Strategy.valueOf(variant)).interpret((Program) program);
+    }
+}
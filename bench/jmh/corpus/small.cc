@@ -0,0 +1,60 @@
+// Representative small CPP program: recursion, loops, booleans
+// and doubles.
+
+int fib(int n) {
+  if (n < 2) return n; else return fib(n - 1) + fib(n - 2);
+}
+
+int gcd(int a, int b) {
+  while (b > 0) {
+    int t = a - a / b * b;
+    a = b;
+    b = t;
+  }
+  return a;
+}
+
+int isqrt(int x) {
+  int r = x;
+  int i = 0;
+  while (i < 20 && r > 0) {
+    r = (r + x / r) / 2;
+    i++;
+  }
+  return r;
+}
+
+double sqrt(double x) {
+  double r = x;
+  int i = 0;
+  while (i < 20 && r > 0.0) {
+    r = (r + x / r) / 2.0;
+    i++;
+  }
+  return r;
+}
+
+bool prime(int n) {
+  if (n < 2) return false; else {
+    int d = 2;
+    while (d * d <= n) {
+      if (n / d * d == n) return false; else d++;
+    }
+    return true;
+  }
+}
+
+int main() {
+  printInt(fib(15));
+  printInt(gcd(1071, 462));
+  printInt(isqrt(1000000));
+  printDouble(sqrt(2.0));
+  int primes = 0;
+  int n = 0;
+  while (n < 1000) {
+    if (prime(n)) primes++; else {}
+    n++;
+  }
+  printInt(primes);
+  return 0;
+}
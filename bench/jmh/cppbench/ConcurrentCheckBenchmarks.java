@@ -0,0 +1,34 @@
+package cppbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Parsing and type checking on all cores at once, each thread with its
+ * own parser and TypeChecker. That the results are the same as on one
+ * thread is checked by ConcurrentCheck, under make check. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ConcurrentCheckBenchmarks {
+
+    @Param({"small", "1k"})
+    public String size;
+
+    private TypedPipeline pipeline;
+    private String source;
+
+    @Setup
+    public void setup() throws Exception {
+        pipeline = Corpus.cpp();
+        source = Corpus.read(size, "cc");
+    }
+
+    @Benchmark
+    public Object parseAndTypecheck() throws Exception {
+        return pipeline.typecheck(pipeline.parse(source));
+    }
+}
@@ -0,0 +1,64 @@
+package cppbench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+
+/* Access to the benchmark programs and to the pipelines running them.
+ *
+ * Programs are corpus/small.{cc,fun}, written by hand, and the generated
+ * corpus/gen/<size>.{cc,fun}; see CorpusGen. The directory can be moved
+ * with -Dcorpus.dir. */
+public class Corpus {
+
+    public static String read(String size, String extension) throws IOException {
+        String dir = System.getProperty("corpus.dir", "corpus");
+        Path p = size.equals("small")
+            ? Paths.get(dir, "small." + extension)
+            : Paths.get(dir, "gen", size + "." + extension);
+        return new String(Files.readAllBytes(p), "UTF-8");
+    }
+
+    public static TypedPipeline cpp() throws Exception {
+        return (TypedPipeline) Class.forName("CppPipeline").getDeclaredConstructor().newInstance();
+    }
+
+    /* The functional interpreter lives on its own class path, given by
+     * -Dfun.classpath, and is loaded in isolation from the CPP classes. */
+    public static Pipeline fun() throws Exception {
+        String cp = System.getProperty("fun.classpath");
+        if (cp == null) throw new IllegalStateException("-Dfun.classpath is not set");
+
+        String[] entries = cp.split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++)
+            urls[i] = Paths.get(entries[i]).toUri().toURL();
+
+        ClassLoader loader = new IsolatingLoader(urls, Corpus.class.getClassLoader());
+        return (Pipeline) loader.loadClass("FunPipeline").getDeclaredConstructor().newInstance();
+    }
+
+    /* Looks in its own URLs before its parent, except for this package,
+     * which both sides must share. */
+    private static class IsolatingLoader extends URLClassLoader {
+        IsolatingLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null && !name.startsWith("java.") && !name.startsWith("cppbench.")) {
+                    try {
+                        c = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        // Fall back to the parent.
+                    }
+                }
+                if (c == null) c = super.loadClass(name, false);
+                if (resolve) resolveClass(c);
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cppbench;
+
+import java.io.*;
+import java.nio.file.*;
+
+/* Generates the large benchmark programs: corpus/gen/<size>.cc and
+ * corpus/gen/<size>.fun of about 1k, 10k and 100k lines each.
+ *
+ * The programs consist of many small functions, each calling the one
+ * defined before it, with every hundredth function ending the chain. So
+ * the front end sees all of the code, while running it takes bounded
+ * time and stack. */
+public class CorpusGen {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "corpus", "gen");
+        Files.createDirectories(dir);
+        write(dir.resolve("1k.cc"), cpp(1000));
+        write(dir.resolve("10k.cc"), cpp(10000));
+        write(dir.resolve("100k.cc"), cpp(100000));
+        write(dir.resolve("1k.fun"), fun(1000));
+        write(dir.resolve("10k.fun"), fun(10000));
+        write(dir.resolve("100k.fun"), fun(100000));
+    }
+
+    /* Eight lines per function. */
+    static String cpp(int lines) {
+        int n = lines / 8;
+        StringBuilder b = new StringBuilder();
+        for (int k = 0; k < n; k++) {
+            b.append("int f").append(k).append("(int x) {\n");
+            b.append("  int y = x * 3 + ").append(k % 97).append(";\n");
+            b.append("  double d = 1.0;\n");
+            b.append("  while (y > 100) { y = y / 2; d = d * 3.0; }\n");
+            b.append("  bool small = y < 50 && d < 1000.0;\n");
+            if (k % 100 == 0)
+                b.append("  if (small) return y + 1; else return y - 1;\n");
+            else
+                b.append("  if (small) return f").append(k - 1).append("(y + 7); else return f")
+                 .append(k - 1).append("(y - 3);\n");
+            b.append("}\n\n");
+        }
+        b.append("int main() {\n");
+        b.append("  int i = 0;\n");
+        b.append("  while (i < 100) { printInt(f").append(n - 1).append("(i)); i++; }\n");
+        b.append("  return 0;\n");
+        b.append("}\n");
+        return b.toString();
+    }
+
+    /* One line per definition. */
+    static String fun(int lines) {
+        int n = lines;
+        StringBuilder b = new StringBuilder();
+        for (int k = 0; k < n; k++) {
+            b.append("f").append(k).append(" x = ");
+            if (k % 100 == 0)
+                b.append("x + ").append(k).append(" ;\n");
+            else
+                b.append("if x < ").append(k % 50).append(" then f").append(k - 1)
+                 .append(" (x + 2) else f").append(k - 1).append(" (x - 1) ;\n");
+        }
+        b.append("main = print (f").append(n - 1).append(" 10) ;\n");
+        return b.toString();
+    }
+
+    static void write(Path p, String s) throws IOException {
+        Files.write(p, s.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,55 @@
+package cppbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Every stage of the CPP pipeline, on programs of increasing size. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CppBenchmarks {
+
+    @Param({"small", "1k", "10k", "100k"})
+    public String size;
+
+    private TypedPipeline pipeline;
+    private String source;
+    private Object program;
+    private Object checker;
+
+    @Setup
+    public void setup() throws Exception {
+        pipeline = Corpus.cpp();
+        source = Corpus.read(size, "cc");
+        program = pipeline.parse(source);
+        checker = pipeline.typecheck(program);
+    }
+
+    @Benchmark
+    public int lex() throws Exception {
+        return pipeline.lex(source);
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return pipeline.parse(source);
+    }
+
+    @Benchmark
+    public Object typecheck() {
+        return pipeline.typecheck(program);
+    }
+
+    @Benchmark
+    public void interpret() {
+        pipeline.interpret(program, null);
+    }
+
+    @Benchmark
+    public String compile() {
+        return pipeline.compile(program, checker);
+    }
+}
@@ -0,0 +1,62 @@
+package cppbench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Lexing, parsing and interpretation of Fun programs of increasing
+ * size, under both evaluation strategies. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FunBenchmarks {
+
+    @Param({"small", "1k", "10k", "100k"})
+    public String size;
+
+    private Pipeline pipeline;
+    private String source;
+
+    @Setup
+    public void setup() throws Exception {
+        pipeline = Corpus.fun();
+        source = Corpus.read(size, "fun");
+
+        /* The interpreter prints its result. */
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /* A program to interpret, and the strategy to do it with. The
+     * interpreter reverses the parameter lists of the tree it runs, so
+     * every run needs a freshly parsed one. */
+    @State(Scope.Benchmark)
+    public static class Run {
+        @Param({"CallByValue", "CallByName"})
+        public String strategy;
+
+        Object program;
+
+        @Setup(Level.Invocation)
+        public void parse(FunBenchmarks b) throws Exception {
+            program = b.pipeline.parse(b.source);
+        }
+    }
+
+    @Benchmark
+    public int lex() throws Exception {
+        return pipeline.lex(source);
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return pipeline.parse(source);
+    }
+
+    @Benchmark
+    public void interpret(Run run) {
+        pipeline.interpret(run.program, run.strategy);
+    }
+}
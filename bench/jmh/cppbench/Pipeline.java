@@ -0,0 +1,17 @@
+package cppbench;
+
+/* The front end and interpreter of one language implementation, as
+ * driven by the benchmarks. Implemented in the default package next to
+ * the code it measures (CppPipeline, FunPipeline), which a named package
+ * cannot import directly. */
+public interface Pipeline {
+
+    /* Runs the lexer over source, returning the number of tokens. */
+    int lex(String source) throws Exception;
+
+    /* Parses source into an abstract syntax tree. */
+    Object parse(String source) throws Exception;
+
+    /* Runs a parsed program; variant selects the evaluation strategy. */
+    void interpret(Object program, String variant);
+}
@@ -0,0 +1,12 @@
+package cppbench;
+
+/* The stages of a language implementation that also has a type checker
+ * and a compiler, as CPP does. */
+public interface TypedPipeline extends Pipeline {
+
+    /* Type checks a parsed program, returning the checker. */
+    Object typecheck(Object program);
+
+    /* Compiles a type checked program to JVM assembler. */
+    String compile(Object program, Object checker);
+}
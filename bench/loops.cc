@@ -0,0 +1,16 @@
+// Nested integer loops: sum of i * j mod 7 over a square.
+int main() {
+  int n = 3000;
+  int s = 0;
+  int i = 0;
+  while (i < n) {
+    int j = 0;
+    while (j < n) {
+      s = s + (i * j - (i * j) / 7 * 7);
+      j++;
+    }
+    i++;
+  }
+  printInt(s);
+  return 0;
+}
@@ -0,0 +1,15 @@
+// Double arithmetic: approximates pi with the Leibniz series.
+int main() {
+  double pi = 0.0;
+  double sign = 1.0;
+  double k = 1.0;
+  int i = 0;
+  while (i < 5000000) {
+    pi = pi + sign * 4.0 / k;
+    sign = 0.0 - sign;
+    k = k + 2.0;
+    i++;
+  }
+  printDouble(pi);
+  return 0;
+}
@@ -0,0 +1,16 @@
+// Output heavy: prints a million ints and half a million doubles.
+int main() {
+  int i = 0;
+  double d = 0.0;
+  while (i < 1000000) {
+    printInt(i * 7);
+    if (i / 2 * 2 == i) {
+      printDouble(d);
+      d = d + 0.25;
+    } else {
+      d = d + 1.0;
+    }
+    i++;
+  }
+  return 0;
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Times every benchmark program under each lab2 execution mode.
+# Usage: bench/run.sh [mode flags...]   (default: visitor, -c and -b)
+
+dir=`dirname $0`
+modes="$@"
+[ -z "$modes" ] && modes="- -c -b"
+
+# Input of input.cc: a count, then that many int and double pairs.
+[ -f $dir/input.in ] || awk 'BEGIN {
+    n = 500000; print n
+    for (i = 0; i < n; i++) printf "%d %.6f\n", i % 1000 - 500, i / 7.0
+}' > $dir/input.in
+
+for prog in $dir/*.cc; do
+    for mode in $modes; do
+        flag=$mode
+        [ "$flag" = "-" ] && flag=""
+        start=`date +%s%N`
+        input=${prog%.cc}.in
+        [ -f $input ] || input=/dev/null
+        $dir/../lab2 $flag $prog < $input > /dev/null || exit 1
+        end=`date +%s%N`
+        printf "%-20s %-4s %6d ms\n" `basename $prog` "$mode" $(( (end - start) / 1000000 ))
+    done
+done
@@ -0,0 +1,26 @@
+// Double == and != compare as Double.equals: NaN equals itself and 0.0
+// differs from -0.0. < and the others compare as IEEE 754 does.
+bool same(double a, double b) {
+  return a == b;
+}
+
+int main() {
+  double zero = 0.0;
+  zero = zero * 1.0;
+  double nan = zero / zero;
+  double negzero = zero * (0.0 - 1.0);
+  if (nan == nan) printInt(1); else printInt(0);
+  if (nan != nan) printInt(1); else printInt(0);
+  if (zero == negzero) printInt(1); else printInt(0);
+  if (zero != negzero) printInt(1); else printInt(0);
+  if (nan < 1.0) printInt(1); else printInt(0);
+  if (nan >= 1.0) printInt(1); else printInt(0);
+  if (same(nan, nan)) printInt(1); else printInt(0);
+  if (same(zero, negzero)) printInt(1); else printInt(0);
+  bool b = nan != nan || zero == negzero;
+  if (b) printInt(1); else printInt(0);
+  int i = 0;
+  while (nan == nan && i < 3) i++;
+  printInt(i);
+  return 0;
+}
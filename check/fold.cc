@@ -0,0 +1,34 @@
+// Constant conditions and propagated locals must fold to a program that
+// runs like the one written. A branch kept in place of its if or while
+// declares in a scope of its own, and x / 0 is left to fail at run time.
+int twice(int n) {
+  return n + n;
+}
+
+int main() {
+  int x = readInt();
+  double d = readDouble();
+  if (true) int x = readInt(); else {}
+  printInt(x);
+  if (false) {} else double d = 2.5;
+  printDouble(d);
+  if (1 < 2) int d = 7; else int d = 8;
+  printDouble(d);
+  while (false) int x = 5;
+  printInt(x);
+  if (true) { int x = 3; printInt(x); } else {}
+  printInt(x);
+
+  int k = 6;
+  int m = k * 7 - twice(k);
+  printInt(m);
+  bool b = k < 10 && 2.0 > 1.5;
+  if (b) printInt(1); else printInt(0);
+  int n = 0;
+  while (n < k) n++;
+  printInt(n);
+
+  int zero = 0;
+  printInt(x / zero);
+  return 0;
+}
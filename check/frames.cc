@@ -0,0 +1,20 @@
+// The double d and the bool b share a JVM local slot. The ends of both
+// ifs are at one offset, whose stack map frame must admit either type.
+int f(int n, double a) {
+  if (n > 100) return f(n - 1, a); else {}
+  if (n > 0) {
+    double d = a + 1.0;
+    printDouble(d);
+  } else {
+    bool b = n < 0 - 5;
+    if (b) printInt(1); else printInt(2);
+  }
+  return n;
+}
+
+int main() {
+  f(1, 2.0);
+  f(0 - 7, 2.0);
+  f(0, 2.0);
+  return 0;
+}
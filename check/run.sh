@@ -0,0 +1,37 @@
+#!/bin/sh
+# Runs every program under check on each lab2 execution mode and compares
+# its output and exit status with those of the visitor interpreter, run
+# on the program as written (-N), so that the folder and the inliner are
+# checked like the engines.
+# Usage: check/run.sh [mode flags...]   (default: -, -c, -b, -j and -t,
+# where - is the visitor interpreter on the optimized program)
+
+dir=`dirname $0`
+modes="$@"
+[ -z "$modes" ] && modes="- -c -b -j -t"
+
+tmp=`mktemp -d`
+trap 'rm -rf $tmp' EXIT
+status=0
+
+for prog in $dir/*.cc; do
+    input=${prog%.cc}.in
+    [ -f $input ] || input=/dev/null
+    $dir/../lab2 -N $prog < $input > $tmp/expected 2> /dev/null
+    echo "exit $?" >> $tmp/expected
+    for mode in $modes; do
+        flags=$mode
+        [ "$mode" = "-" ] && flags=
+        $dir/../lab2 $flags $prog < $input > $tmp/actual 2> $tmp/err
+        echo "exit $?" >> $tmp/actual
+        if cmp -s $tmp/expected $tmp/actual; then
+            printf "%-20s %-4s ok\n" `basename $prog` "$mode"
+        else
+            printf "%-20s %-4s FAILED\n" `basename $prog` "$mode"
+            diff $tmp/expected $tmp/actual | head -10
+            head -5 $tmp/err
+            status=1
+        fi
+    done
+done
+exit $status
@@ -0,0 +1,46 @@
+// round and the functions it calls get hot and move to compiled code
+// while main keeps calling them, which must not change any result:
+// double equality with NaN and -0.0, or declared variables that start
+// out as zero on every pass.
+double step(double x, int i) {
+  double y;
+  if (i / 7 * 7 == i) y = y + x; else y = x * 0.5 + 1.0;
+  return y;
+}
+
+int classify(double a, double b) {
+  int r;
+  if (a == b) r = r + 1; else {}
+  if (a != b) r = r + 2; else {}
+  if (a < b) r = r + 4; else {}
+  return r;
+}
+
+int round(int k, double nan, double zero, double negzero) {
+  int i = 0;
+  int sum = 0;
+  double x = 1.0;
+  while (i < 2000) {
+    int seen;
+    x = step(x, i + k);
+    sum = sum + 1000 * classify(nan, nan) + 100 * classify(zero, negzero) + classify(x, x);
+    sum = sum + 10 * classify(1.0, 2.0) + classify(nan, 1.0) + seen;
+    seen = 1000;
+    i++;
+  }
+  printDouble(x);
+  return sum;
+}
+
+int main() {
+  double zero = 0.0;
+  zero = zero * 1.0;
+  double nan = zero / zero;
+  double negzero = zero * (0.0 - 1.0);
+  int k = 0;
+  while (k < 50) {
+    printInt(round(k, nan, zero, negzero));
+    k++;
+  }
+  return 0;
+}
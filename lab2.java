@@ -2,41 +2,270 @@ import java_cup.runtime.*;
 import CPP.*;
 import CPP.Absyn.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
 public class lab2 {
+
+    public static int usage(PrintStream err) {
+        err.println("Usage: lab2 [-c | -b [-s <MB>] | -j | -t | -J | -d <ClassDir>] [-u] [-m] [-I <n>] [-N] [-p] [-P <ProfileFile>] [-i <InputFile>] [-C <CacheDir>] <SourceFile>");
+        err.println("  -c         run on the closure-compiled engine");
+        err.println("  -b         run on the register bytecode VM");
+        err.println("  -s <MB>    memory budget of the VM's stacks (default "
+                    + VM.DEFAULT_STACK_MB + ")");
+        err.println("  -j         compile to JVM bytecode and run it in this JVM");
+        err.println("  -t         interpret, compiling hot functions to JVM bytecode as it goes");
+        err.println("  -J         print the JVM assembler produced by the compiler instead of running");
+        err.println("  -d <dir>   write the compiled JVM class to dir instead of running");
+        err.println("  -u         write out every printed value at once (unbuffered)");
+        err.println("  -i <file>  read input from file instead of stdin");
+        err.println("  -m         memoize calls of pure functions (visitor and -c engines)");
+        err.println("  -I <n>     inline functions of at most n statements and expressions (default "
+                    + Inliner.DEFAULT_LIMIT + ", 0 turns inlining off)");
+        err.println("  -N         run the program as written, without folding or inlining");
+        err.println("  -p         profile the visitor interpreter on the unoptimized program,");
+        err.println("             reporting on stderr");
+        err.println("  -P <file>  also write the profile to file: JSON if it ends in .json,");
+        err.println("             else collapsed stacks for flamegraph.pl");
+        err.println("  -C <dir>   keep checked programs in dir across runs (default $LAB2_CACHE)");
+        return 1;
+    }
+
+    /* Class name for the compiled program: the file name without its
+     * extension, made a Java identifier. */
+    static String className(Path source) {
+        String name = source.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            s.append(i == 0 ? (Character.isJavaIdentifierStart(c) ? c : '_')
+                            : (Character.isJavaIdentifierPart(c) ? c : '_'));
+        }
+        return s.length() == 0 ? "_" : s.toString();
+    }
+
+    /* The passes every engine runs the checked program through; inline
+     * is the Inliner's size limit. */
+    static CheckedProgram optimize(CheckedProgram p, int inline) {
+        return ConstantFolder.fold(Inliner.inline(p, inline));
+    }
+
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.err.println("Usage: lab2 <SourceFile>");
-            System.exit(1);
+        int status = run(args, Paths.get(""), System.in, System.out, System.err, null);
+        if (status != 0) System.exit(status);
+    }
+
+    /* Runs lab2 with the given arguments, resolving file names against cwd
+     * and using the given standard streams. Checked programs are looked up
+     * in and added to cache, unless it is null. Returns the exit status. */
+    public static int run(String args[], Path cwd, InputStream stdin, PrintStream stdout,
+                          PrintStream stderr, ProgramCache cache) {
+        String file = null;
+        Engine engine = Engine.Visitor;  // visitor interpreter is default engine
+        int stackMB = VM.DEFAULT_STACK_MB;
+        boolean compile = false;
+        String classDir = null;
+        boolean unbuffered = false;
+        String inputFile = null;
+        boolean memoize = false;
+        int inline = Inliner.DEFAULT_LIMIT;
+        boolean optimized = true;
+        boolean profile = false;
+        String profileFile = null;
+        String cacheDir = System.getenv("LAB2_CACHE");
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-c":
+                    engine = Engine.Closure;
+                    break;
+
+                case "-b":
+                    engine = Engine.Bytecode;
+                    break;
+
+                case "-s":
+                    if (++i == args.length) return usage(stderr);
+                    try {
+                        stackMB = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        return usage(stderr);
+                    }
+                    if (stackMB < 1) return usage(stderr);
+                    break;
+
+                case "-j":
+                    engine = Engine.Jvm;
+                    break;
+
+                case "-t":
+                    engine = Engine.Tiered;
+                    break;
+
+                case "-d":
+                    if (++i == args.length) return usage(stderr);
+                    classDir = args[i];
+                    break;
+
+                case "-J":
+                    compile = true;
+                    break;
+
+                case "-u":
+                    unbuffered = true;
+                    break;
+
+                case "-m":
+                    memoize = true;
+                    break;
+
+                case "-I":
+                    if (++i == args.length) return usage(stderr);
+                    try {
+                        inline = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        return usage(stderr);
+                    }
+                    break;
+
+                case "-N":
+                    optimized = false;
+                    break;
+
+                case "-p":
+                    profile = true;
+                    break;
+
+                case "-P":
+                    if (++i == args.length) return usage(stderr);
+                    profile = true;
+                    profileFile = cwd.resolve(args[i]).toString();
+                    break;
+
+                case "-C":
+                    if (++i == args.length) return usage(stderr);
+                    cacheDir = args[i];
+                    break;
+
+                case "-i":
+                    if (++i == args.length) return usage(stderr);
+                    inputFile = args[i];
+                    break;
+
+                default:
+                    if (file != null) return usage(stderr);
+                    file = arg;
+                    break;
+            }
         }
+        if (file == null) return usage(stderr);
 
         Yylex l = null;
         try {
-            l = new Yylex(new FileReader(args[0]));
-            parser p = new parser(l);
-            CPP.Absyn.Program parse_tree = p.pProgram();
-            new TypeChecker().typecheck(parse_tree);
-            new Interpreter().interpret(parse_tree);
+            Path path = cwd.resolve(file);
+            String source = new String(Files.readAllBytes(path), "UTF-8");
+            AstCache disk = cacheDir == null || cacheDir.isEmpty()
+                ? null : new AstCache(cwd.resolve(cacheDir));
+            CheckedProgram program = cache != null ? cache.get(source) : null;
+            if (program == null) {
+                if (disk != null) program = disk.get(source);
+                if (program == null) {
+                    l = new Yylex(new StringReader(source));
+                    parser p = new parser(l, l.getSymbolFactory());
+                    CPP.Absyn.Program parse_tree = p.pProgram();
+                    TypeChecker checker = new TypeChecker();
+                    checker.typecheck(parse_tree);
+                    program = new CheckedProgram(parse_tree, checker);
+                    if (disk != null) disk.put(source, program);
+                }
+                if (cache != null) cache.put(source, program);
+            }
+            /* A profile is of the program as written, so that every function
+             * and loop of the source is counted on its own. */
+            boolean profiled = profile && engine == Engine.Visitor && !compile && classDir == null;
+            if (optimized && !profiled) program = optimize(program, inline);
+            CPP.Absyn.Program parse_tree = program.tree;
+            TypeChecker checker = program.checker;
+
+            String name = className(path);
+            if (compile) {
+                stdout.print(new Compiler(checker).compile(name, parse_tree));
+                stdout.flush();
+                return 0;
+            }
+            if (classDir != null) {
+                Path dir = cwd.resolve(classDir);
+                Files.createDirectories(dir);
+                Files.write(dir.resolve(name + ".class"),
+                            new JvmCompiler(checker).assemble(name, parse_tree));
+                return 0;
+            }
+
+            Input in = inputFile == null
+                ? new Input(stdin)
+                : new Input(FileChannel.open(cwd.resolve(inputFile)));
+            Output out = new Output(stdout, unbuffered);
+            switch (engine) {
+                case Visitor:
+                    if (profiled)
+                        new ProfilingInterpreter(in, out, memoize, stderr, profileFile).interpret(parse_tree);
+                    else
+                        new Interpreter(in, out, memoize, stderr).interpret(parse_tree);
+                    break;
+
+                case Closure:
+                    new ClosureInterpreter(checker, in, out, memoize, stderr).interpret(parse_tree);
+                    break;
+
+                case Bytecode:
+                    new VMCompiler(checker, stackMB, in, out).compile(parse_tree).run();
+                    break;
+
+                case Jvm:
+                    new JvmCompiler(checker, in, out).run(name, parse_tree);
+                    break;
+
+                case Tiered:
+                    new TieredInterpreter(checker, in, out, memoize, stderr).interpret(parse_tree);
+                    break;
+            }
+            return 0;
 
         } catch (TypeException e) {
-            System.out.println("TYPE ERROR");
-            System.err.println(e.toString());
-            System.exit(1);
+            stdout.println("TYPE ERROR");
+            stdout.flush();
+            stderr.println(e.toString());
+            return 1;
         } catch (RuntimeException e) {
-            //            System.out.println("RUNTIME ERROR");
-            System.err.println(e.toString());
-            System.exit(-1);
+            //            stdout.println("RUNTIME ERROR");
+            stderr.println(e.toString());
+            return -1;
         } catch (IOException e) {
-            System.err.println(e.toString());
-            System.exit(1);
+            stderr.println(e.toString());
+            return 1;
+        } catch (VirtualMachineError e) {
+            /* E.g. a StackOverflowError of deep recursion: the program
+             * failed at run time, like with a RuntimeException. */
+            stderr.println(e.toString());
+            return -1;
+        } catch (LinkageError e) {
+            /* E.g. a VerifyError of the class compiled for -j: a fault of
+             * lab2, not of the program. */
+            stderr.println("INTERNAL ERROR");
+            e.printStackTrace(stderr);
+            return -1;
         } catch (Throwable e) {
-            System.out.println("SYNTAX ERROR");
-            System.out.println("At line " + String.valueOf(l.line_num())
+            if (l == null) {  // cached programs are past the parser
+                stderr.println(e.toString());
+                return -1;
+            }
+            stdout.println("SYNTAX ERROR");
+            stdout.println("At line " + String.valueOf(l.line_num())
                        + ", near \"" + l.buff() + "\" :");
-            System.out.println("     " + e.getMessage());
-            e.printStackTrace();
-            System.exit(1);
+            stdout.println("     " + e.getMessage());
+            stdout.flush();
+            e.printStackTrace(stderr);
+            return 1;
         }
     }
 }
-